@@ -0,0 +1,157 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+// Harness minimo di microbenchmark sul modello di JMH, senza dipendenze esterne.
+// Ogni benchmark viene eseguito per alcune iterazioni di riscaldamento e di misura di durata fissa, nello stesso processo;
+// il risultato è il tempo medio per operazione, con l'intervallo di confidenza al 99,9% tra le iterazioni di misura.
+// I risultati vengono salvati in JSON con la stessa struttura di quelli di JMH, così possono essere confrontati con gli stessi strumenti
+public class Harness {
+
+	// Operazione misurata: il risultato viene consumato, così il compilatore JIT non può eliminarla
+	public interface Operation {
+		Object run() throws Exception;
+	}
+
+	// Quantili della t di Student (0,9995) per i gradi di libertà indicati, usati per l'errore al 99,9%
+	private static final int[] DEGREES = { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 15, 20, 30 };
+	private static final double[] T_QUANTILES = { 636.62, 31.60, 12.92, 8.61, 6.87, 5.96, 5.41, 5.04, 4.78, 4.59, 4.07, 3.85, 3.65 };
+	private static final double T_QUANTILE_LIMIT = 3.29;
+
+	private final int warmupIterations;
+	private final int measurementIterations;
+	private final long iterationMillis;
+	private final Pattern filter;
+	private final List<Map<String, Object>> results = new ArrayList<Map<String, Object>>();
+
+	// Risultato dell'ultima operazione, letto alla fine di ogni iterazione
+	private static Object sink;
+	private static int sinkHash;
+
+	public Harness(int warmupIterations, int measurementIterations, long iterationMillis, String filter) {
+		this.warmupIterations = warmupIterations;
+		this.measurementIterations = measurementIterations;
+		this.iterationMillis = iterationMillis;
+		this.filter = filter == null ? null : Pattern.compile(filter);
+	}
+
+	// True se il benchmark va eseguito, da controllare prima di preparare dati costosi
+	public boolean selected(String benchmark) {
+		return filter == null || filter.matcher(benchmark).find();
+	}
+
+	public void run(String benchmark, Map<String, String> params, Operation operation) {
+		run(benchmark, params, 1, operation);
+	}
+
+	// Ogni chiamata dell'operazione conta come operationsPerCall operazioni, ad esempio quando inserisce molti elementi
+	public void run(String benchmark, Map<String, String> params, long operationsPerCall, Operation operation) {
+		if (!selected(benchmark))
+			return;
+
+		for (int i = 0; i < warmupIterations; i++)
+			iteration(operation, operationsPerCall);
+
+		double[] scores = new double[measurementIterations];
+		for (int i = 0; i < measurementIterations; i++)
+			scores[i] = iteration(operation, operationsPerCall);
+
+		double mean = 0;
+		for (double score : scores)
+			mean += score;
+		mean /= scores.length;
+
+		double error = Double.NaN;
+		if (scores.length > 1) {
+			double variance = 0;
+			for (double score : scores)
+				variance += (score - mean) * (score - mean);
+			variance /= scores.length - 1;
+			error = tQuantile(scores.length - 1) * Math.sqrt(variance / scores.length);
+		}
+
+		Map<String, Object> metric = new LinkedHashMap<String, Object>();
+		metric.put("score", mean);
+		metric.put("scoreError", error);
+		metric.put("scoreConfidence", new double[] { mean - error, mean + error });
+		metric.put("scoreUnit", "ns/op");
+		metric.put("rawData", new double[][] { scores });
+
+		Map<String, Object> result = new LinkedHashMap<String, Object>();
+		result.put("benchmark", benchmark);
+		result.put("mode", "avgt");
+		result.put("threads", 1);
+		result.put("forks", 0);
+		result.put("jdkVersion", System.getProperty("java.version"));
+		result.put("vmName", System.getProperty("java.vm.name"));
+		result.put("warmupIterations", warmupIterations);
+		result.put("warmupTime", iterationMillis + " ms");
+		result.put("measurementIterations", measurementIterations);
+		result.put("measurementTime", iterationMillis + " ms");
+		result.put("params", params);
+		result.put("primaryMetric", metric);
+		results.add(result);
+
+		System.out.printf("%-36s %-44s %14.1f +- %10.1f ns/op%n", benchmark, params, mean, error);
+	}
+
+	// Salva tutti i risultati in un file JSON
+	public void writeJson(String fileName) throws IOException {
+		Gson gson = new GsonBuilder().setPrettyPrinting().serializeSpecialFloatingPointValues().create();
+		try (Writer writer = Files.newBufferedWriter(Paths.get(fileName), StandardCharsets.UTF_8)) {
+			gson.toJson(results, writer);
+		}
+	}
+
+	public static Map<String, String> params(String... keysAndValues) {
+		Map<String, String> params = new LinkedHashMap<String, String>();
+		for (int i = 0; i + 1 < keysAndValues.length; i += 2)
+			params.put(keysAndValues[i], keysAndValues[i + 1]);
+		return params;
+	}
+
+	// Esegue l'operazione per almeno iterationMillis e ritorna il tempo medio per operazione in nanosecondi.
+	// L'orologio viene letto ogni batch chiamate, raddoppiando batch finché una chiamata è molto più veloce della lettura
+	private double iteration(Operation operation, long operationsPerCall) {
+		long duration = iterationMillis * 1_000_000;
+		long calls = 0;
+		int batch = 1;
+		long start = System.nanoTime();
+		long elapsed;
+		try {
+			do {
+				for (int i = 0; i < batch; i++)
+					sink = operation.run();
+				calls += batch;
+				elapsed = System.nanoTime() - start;
+				if (elapsed < duration / 1000 && batch < (1 << 20))
+					batch *= 2;
+			} while (elapsed < duration);
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+		if (sink != null)
+			sinkHash ^= sink.hashCode();
+		return (double) elapsed / (calls * operationsPerCall);
+	}
+
+	private static double tQuantile(int degrees) {
+		if (degrees > DEGREES[DEGREES.length - 1])
+			return T_QUANTILE_LIMIT;
+		double quantile = T_QUANTILES[0];
+		for (int i = 0; i < DEGREES.length && DEGREES[i] <= degrees; i++)
+			quantile = T_QUANTILES[i];
+		return quantile;
+	}
+
+}
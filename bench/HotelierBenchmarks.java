@@ -0,0 +1,195 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.PrimitiveIterator;
+import java.util.SplittableRandom;
+
+import com.google.gson.Gson;
+
+// Benchmark di ranking, ricerche, serializzazione e gestione delle richieste, su dati sintetici di dimensione crescente.
+// Va eseguito dalla cartella del progetto, perché legge server.config come il server.
+// Opzioni (tutte facoltative):
+//   --hotels 200,1000,10000,100000,1000000   dimensioni del catalogo
+//   --city-hotels 10000,100000,1000000   hotel di una sola città per i benchmark del ranking
+//   --reviews 1000000            recensioni totali dei dati sintetici (fino a 100000000, richiede -Xmx adeguato)
+//   --warmup 3 --iterations 5    iterazioni di riscaldamento e di misura
+//   --time 1000                  durata di ogni iterazione in millisecondi
+//   --filter regex               esegue solo i benchmark il cui nome contiene regex
+//   --out bench-results.json     file JSON dei risultati
+public class HotelierBenchmarks {
+
+	private static final long SEED = 42;
+	private static final int USERS = 1000;
+	private static final int[] LIST_SIZES = { 10, 100, 1000 };
+
+	public static void main(String[] args) throws Exception {
+		String hotelSizes = "200,1000,10000,100000,1000000";
+		String cityHotelSizes = "10000,100000,1000000";
+		long totalReviews = 1_000_000;
+		int warmup = 3, iterations = 5;
+		long time = 1000;
+		String filter = null;
+		String out = "bench-results.json";
+
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			switch (args[i]) {
+				case "--hotels": hotelSizes = args[i + 1]; break;
+				case "--city-hotels": cityHotelSizes = args[i + 1]; break;
+				case "--reviews": totalReviews = Long.parseLong(args[i + 1]); break;
+				case "--warmup": warmup = Integer.parseInt(args[i + 1]); break;
+				case "--iterations": iterations = Integer.parseInt(args[i + 1]); break;
+				case "--time": time = Long.parseLong(args[i + 1]); break;
+				case "--filter": filter = args[i + 1]; break;
+				case "--out": out = args[i + 1]; break;
+				default:
+					System.out.println("Opzione sconosciuta: " + args[i]);
+					return;
+			}
+		}
+
+		ServerMain.configure();
+		Harness harness = new Harness(warmup, iterations, time, filter);
+
+		hotelBenchmarks(harness, totalReviews);
+		for (String size : cityHotelSizes.split(","))
+			rankingBenchmarks(harness, Integer.parseInt(size.trim()), totalReviews);
+		for (String size : hotelSizes.split(","))
+			catalogBenchmarks(harness, Integer.parseInt(size.trim()), totalReviews);
+		reviewStoreBenchmarks(harness, totalReviews);
+
+		harness.writeJson(out);
+		System.out.println("Risultati salvati in " + out);
+	}
+
+	// Benchmark che non dipendono dalla dimensione del catalogo
+	private static void hotelBenchmarks(Harness harness, long totalReviews) {
+		if (harness.selected("hotel.newReview")) {
+			Hotel hotel = SyntheticData.hotels(1, totalReviews, SEED).get(0);
+			SplittableRandom random = new SplittableRandom(SEED);
+			Review[] reviews = new Review[1024];
+			for (int i = 0; i < reviews.length; i++)
+				reviews[i] = SyntheticData.review(random, 1 + i % USERS, hotel.id());
+			int[] next = { 0 };
+			harness.run("hotel.newReview", Harness.params(), () -> {
+				hotel.newReview(reviews[next[0]++ & (reviews.length - 1)]);
+				return hotel;
+			});
+		}
+
+		Gson gson = ServerMain.createGson(false);
+		for (int size : LIST_SIZES) {
+			if (!harness.selected("gson.hotelList"))
+				break;
+			List<Hotel> hotels = SyntheticData.hotels(size, totalReviews, SEED);
+			harness.run("gson.hotelList", Harness.params("hotels", Integer.toString(size)), () -> gson.toJson(hotels));
+		}
+	}
+
+	// Ranking di una città con count hotel: il comparator originale, come lo usava updateRanking, contro sortByRanking
+	private static void rankingBenchmarks(Harness harness, int count, long totalReviews) {
+		if (!harness.selected("ranking"))
+			return;
+		String size = Integer.toString(count);
+		List<Hotel> hotels = SyntheticData.cityHotels(count, totalReviews, SEED);
+
+		OriginalHotelComparator original = new OriginalHotelComparator();
+		harness.run("ranking.originalComparator", Harness.params("cityHotels", size), () -> hotels.stream().sorted(original).toList());
+		HotelComparator comparator = new HotelComparator();
+		harness.run("ranking.sortByRanking", Harness.params("cityHotels", size), () -> comparator.sortByRanking(hotels));
+	}
+
+	// Benchmark su un catalogo di count hotel caricato nel server
+	private static void catalogBenchmarks(Harness harness, int count, long totalReviews) {
+		String size = Integer.toString(count);
+		List<Hotel> hotels = SyntheticData.hotels(count, totalReviews, SEED);
+		ServerMain.replaceData(hotels, SyntheticData.users(USERS));
+		ServerMain.updateRankings();
+
+		harness.run("updateRankings", Harness.params("hotels", size), () -> {
+			ServerMain.updateRankings();
+			return null;
+		});
+
+		// Ricerche su hotel e città scelti a caso, sempre nello stesso ordine
+		SplittableRandom random = new SplittableRandom(SEED);
+		int cities = SyntheticData.cities(count);
+		String[] hotelNames = new String[1024];
+		String[] hotelCities = new String[1024];
+		String[] cityNames = new String[1024];
+		for (int i = 0; i < hotelNames.length; i++) {
+			int hotel = random.nextInt(count);
+			hotelNames[i] = SyntheticData.hotelName(hotel);
+			hotelCities[i] = SyntheticData.cityName(SyntheticData.cityOf(hotel, count));
+			cityNames[i] = SyntheticData.cityName(random.nextInt(cities));
+		}
+		int[] next = { 0 };
+
+		harness.run("searchHotel", Harness.params("hotels", size), () -> {
+			int i = next[0]++ & (hotelNames.length - 1);
+			return ServerMain.searchHotel(hotelNames[i], hotelCities[i]);
+		});
+		for (boolean binary : new boolean[] { false, true }) {
+			harness.run("searchAllHotels", Harness.params("hotels", size, "binary", Boolean.toString(binary)),
+					() -> ServerMain.searchAllHotels(cityNames[next[0]++ & (cityNames.length - 1)], binary));
+		}
+
+		// Richieste complete: decodifica del messaggio, risposta e restituzione del buffer al pool
+		for (int version : new int[] { Protocol.VERSION_TEXT, Protocol.VERSION_BINARY }) {
+			ReadState state = new ReadState(1024, 1 << 24, null, new BufferPool(true, 256));
+			state.protocolVersion = version;
+
+			String hotelName = hotelNames[0], hotelCity = hotelCities[0], cityName = cityNames[0];
+			handleResponseBenchmark(harness, size, state, "searchHotel", new Request(Protocol.SEARCH_HOTEL, hotelName, hotelCity, null));
+			handleResponseBenchmark(harness, size, state, "searchAllHotels", new Request(Protocol.SEARCH_ALL_HOTELS, cityName, null, null));
+			// Login e logout si alternano sulla stessa connessione
+			handleResponseBenchmark(harness, size, state, "login", new Request(Protocol.LOGIN, "utente0", "password0", null));
+		}
+	}
+
+	private static void handleResponseBenchmark(Harness harness, String size, ReadState state, String requestName, Request request) {
+		boolean binary = state.protocolVersion == Protocol.VERSION_BINARY;
+		ByteBuffer message = binary ? Protocol.encodeRequest(request) : ByteBuffer.wrap(Protocol.encodeText(request).getBytes(StandardCharsets.UTF_8));
+		// Salto la lunghezza, come fa il server quando estrae il messaggio
+		if (binary)
+			message.position(Integer.BYTES);
+		ByteBuffer encoded = message.slice();
+
+		harness.run("handleResponse", Harness.params("hotels", size, "request", requestName, "protocol", Integer.toString(state.protocolVersion)), () -> {
+			ByteBuffer input = encoded.duplicate();
+			Request decoded = binary ? Protocol.decodeRequest(input) : Protocol.parseText(state.text(input), "exit");
+			ByteBuffer response = ServerMain.handleResponse(decoded, state);
+			int length = response == null ? 0 : response.remaining();
+			if (response != null)
+				ServerMain.releaseResponse(response);
+			return length;
+		});
+	}
+
+	// Inserimento di tutte le recensioni sintetiche nell'archivio a colonne e scansione delle recensioni di un hotel
+	private static void reviewStoreBenchmarks(Harness harness, long totalReviews) {
+		int hotels = 10_000;
+		String size = Long.toString(totalReviews);
+		ReviewStore store = new ReviewStore();
+
+		harness.run("reviewStore.add", Harness.params("reviews", size), totalReviews, () -> {
+			store.clear();
+			SyntheticData.fillReviews(store, totalReviews, hotels, USERS, SEED);
+			return store.size();
+		});
+
+		if (!harness.selected("reviewStore.byHotel"))
+			return;
+		if (store.size() == 0)
+			SyntheticData.fillReviews(store, totalReviews, hotels, USERS, SEED);
+		int[] next = { 0 };
+		harness.run("reviewStore.byHotel", Harness.params("reviews", size), () -> {
+			int hotelId = 1 + next[0]++ % hotels;
+			long sum = 0;
+			PrimitiveIterator.OfInt indexes = store.byHotel(hotelId);
+			while (indexes.hasNext())
+				sum += store.rate(indexes.nextInt());
+			return sum;
+		});
+	}
+
+}
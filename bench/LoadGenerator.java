@@ -0,0 +1,845 @@
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Properties;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+// Generatore di carico per misurare throughput e latenze del server, senza interazione.
+// Apre molte connessioni, divise tra alcuni thread che le gestiscono con un proprio selector, e invia un mix configurabile
+// di richieste con la stessa codifica di ClientMain (Protocol), con entrambe le versioni del protocollo.
+// Modalità:
+//   closed: ogni connessione tiene sempre pipeline richieste in corso, inviandone una nuova appena riceve una risposta
+//           (dopo think millisecondi). Il throughput dipende dal server
+//   open:   le richieste partono a ritmo fisso (rate al secondo in totale), indipendentemente dalle risposte; se una
+//           connessione ha già pipeline richieste in corso la nuova attende, ma la sua latenza parte dall'istante previsto
+// Le latenze sono corrette per la coordinated omission: in modalità open sono misurate dall'istante in cui la richiesta
+// sarebbe dovuta partire, in modalità closed ogni attesa più lunga dell'intervallo atteso tra due richieste aggiunge
+// anche le richieste che un client reale avrebbe inviato nel frattempo. Vengono riportate anche le latenze non corrette,
+// misurate dall'effettivo invio, per confronto.
+// Va eseguito dalla cartella del progetto, perché legge server.config (porta) e il file degli hotel (nomi e città da cercare).
+// Opzioni (tutte facoltative):
+//   --host localhost           indirizzo del server
+//   --connections 1000         connessioni aperte
+//   --selectors 4              thread che gestiscono le connessioni (default: metà dei processori)
+//   --mode closed              closed oppure open
+//   --rate 10000               richieste al secondo in totale, in modalità open
+//   --pipeline 1               richieste in corso al massimo per connessione
+//   --think 0                  attesa in millisecondi prima della richiesta successiva, in modalità closed
+//   --duration 30 --warmup 5   durata della misura e del riscaldamento iniziale (non misurato), in secondi
+//   --mix login=5,search=50,city=30,review=10,badge=5   pesi delle richieste
+//   --users 100                utenti registrati dal generatore e usati a turno dalle connessioni
+//   --protocol 2               versione del protocollo
+//   --compression false        chiede al server di comprimere le risposte più lunghe
+//   --out file.json            salva anche i risultati in JSON
+public class LoadGenerator {
+
+	private static final String configFile = "server.config";
+	private static final String USER_PREFIX = "loadgen";
+	private static final String PASSWORD = "loadgen";
+	private static final long DRAIN_NANOS = TimeUnit.SECONDS.toNanos(5); // Attesa delle ultime risposte alla fine
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+	// Richieste del mix, con il nome usato nell'opzione --mix
+	private static final String[] MIX_NAMES = { "login", "search", "city", "review", "badge" };
+	private static final int[] MIX_OPCODES = { Protocol.LOGIN, Protocol.SEARCH_HOTEL, Protocol.SEARCH_ALL_HOTELS, Protocol.INSERT_REVIEW, Protocol.SHOW_BADGE };
+
+	private static String host = "localhost";
+	private static int port;
+	private static int connections = 1000;
+	private static int selectors = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+	private static boolean open = false;
+	private static double rate = 10000;
+	private static int pipeline = 1;
+	private static long thinkNanos = 0;
+	private static long durationNanos = TimeUnit.SECONDS.toNanos(30);
+	private static long warmupNanos = TimeUnit.SECONDS.toNanos(5);
+	private static int[] mixWeights = { 5, 50, 30, 10, 5 };
+	private static int users = 100;
+	private static int protocolVersion = Protocol.VERSION_BINARY;
+	private static boolean compression = false;
+	private static String out = null;
+	private static String exitMessage;
+	private static String hotelsFile;
+
+	// Nomi e città degli hotel, per ricerche e recensioni che trovano sempre un hotel
+	private static String[] hotelNames;
+	private static String[] hotelCities;
+	private static String[] cities;
+
+	// Istanti comuni a tutti i thread (System.nanoTime)
+	private static volatile long startTime;
+	private static volatile long measureStart;
+	private static volatile long endTime;
+
+	public static void main(String[] args) throws Exception {
+		if (!parseArgs(args))
+			return;
+		loadConfig();
+		loadHotels();
+		registerUsers();
+
+		// Apro le connessioni prima di iniziare, così il tempo di connessione non entra nella misura
+		System.out.printf("Apertura di %d connessioni verso %s:%d...%n", connections, host, port);
+		InetSocketAddress address = new InetSocketAddress(host, port);
+		Worker[] workers = new Worker[selectors];
+		CountDownLatch ready = new CountDownLatch(selectors);
+		CountDownLatch start = new CountDownLatch(1);
+		for (int i = 0; i < selectors; i++)
+			workers[i] = new Worker(i, ready, start);
+		for (int i = 0; i < connections; i++) {
+			SocketChannel channel = SocketChannel.open(address);
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			channel.configureBlocking(false);
+			workers[i % selectors].connections.add(new Connection(channel, i));
+		}
+
+		// Handshake e login di tutte le connessioni, poi parto insieme su tutti i thread
+		for (Worker worker : workers)
+			worker.start();
+		ready.await();
+		int failed = 0;
+		for (Worker worker : workers)
+			failed += worker.failedConnections;
+		if (failed > 0)
+			System.out.println("Connessioni non pronte: " + failed);
+
+		startTime = System.nanoTime();
+		measureStart = startTime + warmupNanos;
+		endTime = measureStart + durationNanos;
+		System.out.printf("Modalità %s, %d connessioni, %d selector, protocollo %d: %d s di riscaldamento e %d s di misura%n",
+				open ? "open (" + (long) rate + " richieste/s)" : "closed", connections, selectors, protocolVersion,
+				TimeUnit.NANOSECONDS.toSeconds(warmupNanos), TimeUnit.NANOSECONDS.toSeconds(durationNanos));
+		start.countDown();
+		for (Worker worker : workers)
+			worker.join();
+
+		report(workers);
+	}
+
+	private static boolean parseArgs(String[] args) {
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			String value = args[i + 1];
+			switch (args[i]) {
+				case "--host": host = value; break;
+				case "--connections": connections = Integer.parseInt(value); break;
+				case "--selectors": selectors = Integer.parseInt(value); break;
+				case "--mode": open = value.equalsIgnoreCase("open"); break;
+				case "--rate": rate = Double.parseDouble(value); break;
+				case "--pipeline": pipeline = Math.max(1, Integer.parseInt(value)); break;
+				case "--think": thinkNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(value)); break;
+				case "--duration": durationNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(value)); break;
+				case "--warmup": warmupNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(value)); break;
+				case "--mix": mixWeights = parseMix(value); break;
+				case "--users": users = Math.max(1, Integer.parseInt(value)); break;
+				case "--protocol": protocolVersion = Integer.parseInt(value); break;
+				case "--compression": compression = Boolean.parseBoolean(value); break;
+				case "--out": out = value; break;
+				default:
+					System.out.println("Opzione sconosciuta: " + args[i]);
+					return false;
+			}
+		}
+		selectors = Math.max(1, Math.min(selectors, connections));
+		return true;
+	}
+
+	// Pesi nella forma "login=5,search=50", le richieste non indicate hanno peso 0
+	private static int[] parseMix(String mix) {
+		int[] weights = new int[MIX_NAMES.length];
+		for (String entry : mix.split(",")) {
+			String[] pair = entry.split("=");
+			int index = List.of(MIX_NAMES).indexOf(pair[0].trim());
+			if (index < 0 || pair.length != 2)
+				throw new IllegalArgumentException("Richiesta sconosciuta nel mix: " + entry);
+			weights[index] = Integer.parseInt(pair[1].trim());
+		}
+		return weights;
+	}
+
+	private static void loadConfig() {
+		Properties props = new Properties();
+		try (FileInputStream fis = new FileInputStream(configFile)) {
+			props.load(fis);
+		} catch (IOException e) {
+			System.out.println("Errore nella lettura del file di configurazione");
+			System.exit(1);
+		}
+		port = Integer.parseInt(props.getProperty("PORT"));
+		exitMessage = props.getProperty("exitMessage");
+		hotelsFile = props.getProperty("hotelsFile");
+	}
+
+	private static void loadHotels() throws IOException {
+		Gson gson = new GsonBuilder().setDateFormat("dd-MM-yyyy").create();
+		Hotel[] hotels;
+		try (Reader reader = Files.newBufferedReader(Paths.get(hotelsFile), StandardCharsets.UTF_8)) {
+			hotels = gson.fromJson(reader, Hotel[].class);
+		}
+		hotelNames = new String[hotels.length];
+		hotelCities = new String[hotels.length];
+		List<String> cityList = new ArrayList<String>();
+		for (int i = 0; i < hotels.length; i++) {
+			hotelNames[i] = hotels[i].name;
+			hotelCities[i] = hotels[i].city;
+			if (!cityList.contains(hotels[i].city))
+				cityList.add(hotels[i].city);
+		}
+		cities = cityList.toArray(new String[0]);
+	}
+
+	// Registro gli utenti del generatore con una connessione testuale bloccante; se esistono già il server risponde 3
+	private static void registerUsers() throws IOException {
+		try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port))) {
+			ByteBuffer code = ByteBuffer.allocate(Integer.BYTES);
+			for (int i = 0; i < users; i++) {
+				byte[] request = Protocol.encodeText(new Request(Protocol.REGISTER, USER_PREFIX + i, PASSWORD, null)).getBytes(StandardCharsets.UTF_8);
+				ByteBuffer message = ByteBuffer.allocate(Integer.BYTES + request.length).putInt(request.length).put(request).flip();
+				while (message.hasRemaining())
+					channel.write(message);
+				code.clear();
+				while (code.hasRemaining()) {
+					if (channel.read(code) == -1)
+						throw new IOException("Connessione chiusa dal server durante la registrazione");
+				}
+				int response = code.getInt(0);
+				if (response != 0 && response != 3)
+					throw new IOException("Registrazione di " + USER_PREFIX + i + " fallita: " + response);
+			}
+			byte[] exit = exitMessage.getBytes(StandardCharsets.UTF_8);
+			ByteBuffer message = ByteBuffer.allocate(Integer.BYTES + exit.length).putInt(exit.length).put(exit).flip();
+			while (message.hasRemaining())
+				channel.write(message);
+		}
+	}
+
+	// Richieste inviate in attesa di risposta, in ordine: istante previsto, istante di invio e codice
+	private static final class InFlight {
+		private long[] intended = new long[4];
+		private long[] sent = new long[4];
+		private int[] opcodes = new int[4];
+		private int head, size;
+
+		void add(long intendedTime, long sentTime, int opcode) {
+			if (size == opcodes.length)
+				grow();
+			int index = (head + size) & (opcodes.length - 1);
+			intended[index] = intendedTime;
+			sent[index] = sentTime;
+			opcodes[index] = opcode;
+			size++;
+		}
+
+		private void grow() {
+			long[] newIntended = new long[opcodes.length * 2];
+			long[] newSent = new long[opcodes.length * 2];
+			int[] newOpcodes = new int[opcodes.length * 2];
+			for (int i = 0; i < size; i++) {
+				int index = (head + i) & (opcodes.length - 1);
+				newIntended[i] = intended[index];
+				newSent[i] = sent[index];
+				newOpcodes[i] = opcodes[index];
+			}
+			intended = newIntended;
+			sent = newSent;
+			opcodes = newOpcodes;
+			head = 0;
+		}
+	}
+
+	// Stato di una connessione, usato solo dal suo thread
+	private static final class Connection {
+		private final SocketChannel channel;
+		private final int userIndex;
+		private SelectionKey key;
+		private ByteBuffer output = ByteBuffer.allocate(1024);
+		private final InFlight inFlight = new InFlight();
+		private boolean ready = false; // Handshake completato
+		private boolean prepared = false; // Handshake e login completati
+		private boolean authenticated = false;
+		private boolean closed = false;
+
+		// Richieste della modalità open in attesa che si liberi la pipeline: istanti previsti, in ordine
+		private long[] backlog = new long[4];
+		private int backlogHead, backlogSize;
+
+		// Decodifica incrementale della risposta in arrivo: lunghezza (o codice testuale) e primi byte del contenuto
+		private int header, headerBytes;
+		private int bodyRemaining;
+		private long capture;
+		private int captured;
+
+		// Istante della prossima richiesta in modalità closed con think time
+		private long nextSend;
+
+		Connection(SocketChannel channel, int index) {
+			this.channel = channel;
+			this.userIndex = index % users;
+		}
+
+		void enqueueBacklog(long intendedTime) {
+			if (backlogSize == backlog.length) {
+				long[] grown = new long[backlog.length * 2];
+				for (int i = 0; i < backlogSize; i++)
+					grown[i] = backlog[(backlogHead + i) & (backlog.length - 1)];
+				backlog = grown;
+				backlogHead = 0;
+			}
+			backlog[(backlogHead + backlogSize) & (backlog.length - 1)] = intendedTime;
+			backlogSize++;
+		}
+
+		long pollBacklog() {
+			long intendedTime = backlog[backlogHead];
+			backlogHead = (backlogHead + 1) & (backlog.length - 1);
+			backlogSize--;
+			return intendedTime;
+		}
+	}
+
+	// Latenze e contatori di un thread, per codice di richiesta; alla fine vengono sommati tra tutti i thread
+	private static final class Stats {
+		private final Metrics.Histogram[] corrected = new Metrics.Histogram[Protocol.METRICS + 1];
+		private final Metrics.Histogram[] raw = new Metrics.Histogram[Protocol.METRICS + 1];
+		private final long[] errors = new long[Protocol.METRICS + 1];
+
+		Stats() {
+			for (int i = 0; i < corrected.length; i++) {
+				corrected[i] = new Metrics.Histogram();
+				raw[i] = new Metrics.Histogram();
+			}
+		}
+
+		void add(Stats other) {
+			for (int i = 0; i < corrected.length; i++) {
+				corrected[i].add(other.corrected[i]);
+				raw[i].add(other.raw[i]);
+				errors[i] += other.errors[i];
+			}
+		}
+	}
+
+	private static final class Worker extends Thread {
+		private final List<Connection> connections = new ArrayList<Connection>();
+		private final CountDownLatch ready;
+		private final CountDownLatch start;
+		private final SplittableRandom random;
+		private final ByteBuffer input = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		private final Stats stats = new Stats();
+		private Selector selector;
+		private int failedConnections;
+		private int pending; // Connessioni ancora in handshake o login
+		private long lostRequests; // Richieste in corso su connessioni chiuse dal server, o senza risposta alla fine
+		private long lastCompletion; // Ultima risposta misurata
+
+		// Modalità closed: intervallo atteso tra due richieste di una connessione, stimato durante il riscaldamento
+		private long expectedInterval;
+		private long warmupLatencySum, warmupLatencyCount;
+		private final PriorityQueue<Connection> sleeping = new PriorityQueue<Connection>((a, b) -> Long.compare(a.nextSend, b.nextSend));
+
+		// Modalità open: le richieste del thread sono distribuite a turno tra le sue connessioni
+		private long interval;
+		private long nextArrival;
+		private int nextConnection;
+
+		Worker(int index, CountDownLatch ready, CountDownLatch start) {
+			super("loadgen-" + index);
+			this.ready = ready;
+			this.start = start;
+			this.random = new SplittableRandom(index);
+		}
+
+		@Override
+		public void run() {
+			try {
+				selector = Selector.open();
+				setup();
+				start.await();
+				if (open) {
+					interval = (long) (1e9 * selectors / rate);
+					nextArrival = startTime;
+				} else {
+					for (Connection connection : connections)
+						for (int i = 0; i < pipeline; i++)
+							send(connection, startTime);
+				}
+				loop();
+				for (Connection connection : connections) {
+					if (!connection.closed)
+						lostRequests += connection.inFlight.size + connection.backlogSize;
+					close(connection);
+				}
+				selector.close();
+			} catch (IOException | InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		// Handshake, se serve, e login di ogni connessione
+		private void setup() throws IOException {
+			for (Connection connection : connections) {
+				connection.key = connection.channel.register(selector, SelectionKey.OP_READ, connection);
+				if (protocolVersion >= Protocol.VERSION_BINARY || compression)
+					write(connection, Protocol.handshake(protocolVersion, compression ? Protocol.FLAG_COMPRESSION : 0), 0, Protocol.HANDSHAKE);
+				else
+					connection.ready = true;
+				write(connection, encode(new Request(Protocol.LOGIN, USER_PREFIX + connection.userIndex, PASSWORD, null)), 0, Protocol.LOGIN);
+				connection.authenticated = true;
+				pending++;
+			}
+			while (pending > 0) {
+				selector.select(1000);
+				handleKeys();
+			}
+			ready.countDown();
+		}
+
+		private void loop() throws IOException {
+			long drainEnd = endTime + DRAIN_NANOS;
+			while (true) {
+				long now = System.nanoTime();
+				if (now >= drainEnd || (now >= endTime && !inFlight()))
+					return;
+
+				if (now < endTime) {
+					if (open)
+						scheduleArrivals(now);
+					else
+						wakeSleeping(now);
+				}
+
+				// Attendo fino al prossimo invio previsto
+				long wait = TimeUnit.NANOSECONDS.toMillis(nextEvent(now) - now);
+				if (wait > 0)
+					selector.select(wait);
+				else
+					selector.selectNow();
+				handleKeys();
+			}
+		}
+
+		private long nextEvent(long now) {
+			long next = Math.min(endTime, now + TimeUnit.MILLISECONDS.toNanos(100));
+			if (now >= endTime)
+				return now + TimeUnit.MILLISECONDS.toNanos(100);
+			if (open)
+				next = Math.min(next, nextArrival);
+			else if (!sleeping.isEmpty())
+				next = Math.min(next, sleeping.peek().nextSend);
+			return next;
+		}
+
+		private boolean inFlight() {
+			for (Connection connection : connections) {
+				if (!connection.closed && (connection.inFlight.size > 0 || connection.backlogSize > 0))
+					return true;
+			}
+			return false;
+		}
+
+		// Modalità open: ogni arrivo previsto fino ad ora va alla prossima connessione, che lo invia subito
+		// se la sua pipeline non è piena, altrimenti lo mette in attesa mantenendo l'istante previsto
+		private void scheduleArrivals(long now) throws IOException {
+			while (nextArrival <= now && nextArrival < endTime) {
+				Connection connection = nextOpenConnection();
+				if (connection == null) {
+					// Tutte le connessioni sono state chiuse dal server
+					nextArrival = endTime;
+					return;
+				}
+				if (connection.inFlight.size < pipeline)
+					send(connection, nextArrival);
+				else
+					connection.enqueueBacklog(nextArrival);
+				nextArrival += interval;
+			}
+		}
+
+		private Connection nextOpenConnection() {
+			for (int i = 0; i < connections.size(); i++) {
+				Connection connection = connections.get(nextConnection);
+				nextConnection = (nextConnection + 1) % connections.size();
+				if (!connection.closed && connection.ready)
+					return connection;
+			}
+			return null;
+		}
+
+		// Modalità closed con think time: invio le richieste il cui momento è arrivato
+		private void wakeSleeping(long now) throws IOException {
+			while (!sleeping.isEmpty() && sleeping.peek().nextSend <= now) {
+				Connection connection = sleeping.poll();
+				if (!connection.closed)
+					send(connection, connection.nextSend);
+			}
+		}
+
+		// Sceglie la prossima richiesta dal mix e la invia. Il login si alterna con il logout, e una recensione
+		// su una connessione non autenticata diventa un login, così le recensioni inviate vanno sempre a buon fine
+		private void send(Connection connection, long intendedTime) throws IOException {
+			int opcode = MIX_OPCODES[pickMix()];
+			Request request;
+			if (opcode == Protocol.INSERT_REVIEW && !connection.authenticated)
+				opcode = Protocol.LOGIN;
+			switch (opcode) {
+				case Protocol.LOGIN:
+					request = connection.authenticated ? new Request(Protocol.LOGIN, null, null, null)
+							: new Request(Protocol.LOGIN, USER_PREFIX + connection.userIndex, PASSWORD, null);
+					connection.authenticated = !connection.authenticated;
+				break;
+				case Protocol.SEARCH_HOTEL: {
+					int hotel = random.nextInt(hotelNames.length);
+					request = new Request(opcode, hotelNames[hotel], hotelCities[hotel], null);
+				}
+				break;
+				case Protocol.SEARCH_ALL_HOTELS:
+					request = new Request(opcode, cities[random.nextInt(cities.length)], null, null);
+				break;
+				case Protocol.INSERT_REVIEW: {
+					int hotel = random.nextInt(hotelNames.length);
+					int[] rates = new int[Protocol.RATES];
+					for (int i = 0; i < rates.length; i++)
+						rates[i] = 1 + random.nextInt(5);
+					request = new Request(opcode, hotelNames[hotel], hotelCities[hotel], rates);
+				}
+				break;
+				default:
+					request = new Request(opcode, null, null, null);
+			}
+			write(connection, encode(request), intendedTime, opcode);
+		}
+
+		private int pickMix() {
+			int total = 0;
+			for (int weight : mixWeights)
+				total += weight;
+			int value = random.nextInt(total);
+			for (int i = 0; i < mixWeights.length; i++) {
+				value -= mixWeights[i];
+				if (value < 0)
+					return i;
+			}
+			return mixWeights.length - 1;
+		}
+
+		// Aggiunge il messaggio a quelli da scrivere e prova a scriverlo subito
+		private void write(Connection connection, ByteBuffer message, long intendedTime, int opcode) throws IOException {
+			if (connection.output.remaining() < message.remaining()) {
+				ByteBuffer grown = ByteBuffer.allocate(Math.max(connection.output.capacity() * 2, connection.output.position() + message.remaining()));
+				connection.output.flip();
+				grown.put(connection.output);
+				connection.output = grown;
+			}
+			connection.output.put(message);
+			connection.inFlight.add(intendedTime, System.nanoTime(), opcode);
+			flush(connection);
+		}
+
+		private void flush(Connection connection) throws IOException {
+			connection.output.flip();
+			try {
+				connection.channel.write(connection.output);
+			} catch (IOException e) {
+				connection.output.compact();
+				lost(connection);
+				return;
+			}
+			boolean remaining = connection.output.hasRemaining();
+			connection.output.compact();
+			connection.key.interestOps(remaining ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+		}
+
+		private void handleKeys() throws IOException {
+			for (SelectionKey key : selector.selectedKeys()) {
+				Connection connection = (Connection) key.attachment();
+				if (!key.isValid())
+					continue;
+				if (key.isWritable())
+					flush(connection);
+				if (key.isValid() && key.isReadable())
+					read(connection);
+			}
+			selector.selectedKeys().clear();
+		}
+
+		private void read(Connection connection) throws IOException {
+			while (true) {
+				input.clear();
+				int read;
+				try {
+					read = connection.channel.read(input);
+				} catch (IOException e) {
+					read = -1;
+				}
+				if (read == -1) {
+					lost(connection);
+					return;
+				}
+				if (read == 0)
+					return;
+				input.flip();
+				decode(connection, input);
+				if (read < input.capacity())
+					return;
+			}
+		}
+
+		// Le risposte arrivano nell'ordine delle richieste. Con la versione 1 i codici di risposta sono un intero senza lunghezza,
+		// tutte le altre risposte sono un messaggio preceduto dalla lunghezza, di cui conservo solo i primi byte
+		private void decode(Connection connection, ByteBuffer buffer) throws IOException {
+			while (buffer.hasRemaining()) {
+				if (connection.inFlight.size == 0)
+					throw new IOException("Risposta inattesa dal server");
+
+				if (connection.headerBytes < Integer.BYTES) {
+					connection.header = (connection.header << 8) | (buffer.get() & 0xFF);
+					if (++connection.headerBytes < Integer.BYTES)
+						continue;
+					if (headOpcode(connection) != Protocol.HANDSHAKE && protocolVersion == Protocol.VERSION_TEXT && codeResponse(headOpcode(connection))) {
+						complete(connection, connection.header);
+						continue;
+					}
+					connection.bodyRemaining = Protocol.messageLength(connection.header);
+				} else {
+					int count = Math.min(connection.bodyRemaining, buffer.remaining());
+					for (int i = 0; i < count && connection.captured < Long.BYTES; i++, connection.captured++)
+						connection.capture = (connection.capture << 8) | (buffer.get(buffer.position() + i) & 0xFF);
+					buffer.position(buffer.position() + count);
+					connection.bodyRemaining -= count;
+				}
+
+				if (connection.bodyRemaining == 0) {
+					int code = 0;
+					// Con la versione 2 il codice di risposta è il primo byte del messaggio
+					if (codeResponse(headOpcode(connection)) && connection.captured > 0)
+						code = (int) (connection.capture >>> (8 * (connection.captured - 1))) & 0xFF;
+					// Handshake: MAGIC seguito da versione e opzioni accettate
+					if (headOpcode(connection) == Protocol.HANDSHAKE && ((connection.capture >>> 8) & 0xFF) != protocolVersion)
+						throw new IOException("Il server non supporta il protocollo " + protocolVersion);
+					complete(connection, code);
+				}
+			}
+		}
+
+		private int headOpcode(Connection connection) {
+			InFlight inFlight = connection.inFlight;
+			return inFlight.opcodes[inFlight.head];
+		}
+
+		private boolean codeResponse(int opcode) {
+			return opcode == Protocol.REGISTER || opcode == Protocol.LOGIN || opcode == Protocol.INSERT_REVIEW;
+		}
+
+		// Risposta completa alla richiesta più vecchia della connessione
+		private void complete(Connection connection, int code) throws IOException {
+			long now = System.nanoTime();
+			InFlight inFlight = connection.inFlight;
+			int index = inFlight.head;
+			long intendedTime = inFlight.intended[index];
+			long sentTime = inFlight.sent[index];
+			int opcode = inFlight.opcodes[index];
+			inFlight.head = (index + 1) & (inFlight.opcodes.length - 1);
+			inFlight.size--;
+			connection.header = connection.headerBytes = 0;
+			connection.bodyRemaining = 0;
+			connection.capture = connection.captured = 0;
+
+			// Richieste di preparazione della connessione
+			if (intendedTime == 0) {
+				if (opcode == Protocol.HANDSHAKE)
+					connection.ready = true;
+				else if (opcode == Protocol.LOGIN && code != 0)
+					throw new IOException("Login di " + USER_PREFIX + connection.userIndex + " fallito");
+				if (connection.ready && inFlight.size == 0) {
+					connection.prepared = true;
+					pending--;
+				}
+				return;
+			}
+
+			record(opcode, intendedTime, sentTime, now, code);
+
+			// Prossima richiesta della connessione. In modalità open le richieste in attesa vengono inviate anche dopo la fine
+			// della misura, perché sono arrivate prima e la loro latenza conta
+			if (open) {
+				if (connection.backlogSize > 0)
+					send(connection, connection.pollBacklog());
+			} else if (now >= endTime)
+				return;
+			else if (thinkNanos > 0) {
+				connection.nextSend = now + thinkNanos;
+				sleeping.add(connection);
+			} else
+				send(connection, now);
+		}
+
+		private void record(int opcode, long intendedTime, long sentTime, long now, int code) {
+			if (intendedTime < measureStart) {
+				// Durante il riscaldamento stimo l'intervallo atteso tra due richieste della modalità closed
+				warmupLatencySum += now - sentTime;
+				warmupLatencyCount++;
+				return;
+			}
+			if (!open && expectedInterval == 0 && warmupLatencyCount > 0)
+				expectedInterval = warmupLatencySum / warmupLatencyCount + thinkNanos;
+
+			lastCompletion = now;
+			if (code != 0)
+				stats.errors[opcode]++;
+			stats.raw[opcode].record(now - sentTime);
+			long latency = now - intendedTime;
+			Metrics.Histogram histogram = stats.corrected[opcode];
+			histogram.record(latency);
+			// Modalità closed: una risposta più lenta dell'intervallo atteso ha ritardato anche le richieste successive
+			if (!open && expectedInterval > 0) {
+				for (long missing = latency - expectedInterval; missing >= expectedInterval; missing -= expectedInterval)
+					histogram.record(missing);
+			}
+		}
+
+		private void lost(Connection connection) {
+			if (connection.closed)
+				return;
+			if (!connection.prepared) {
+				connection.prepared = true;
+				pending--;
+				failedConnections++;
+			}
+			lostRequests += connection.inFlight.size + connection.backlogSize;
+			close(connection);
+		}
+
+		private void close(Connection connection) {
+			connection.closed = true;
+			try {
+				connection.channel.close();
+			} catch (IOException e) {}
+		}
+	}
+
+	private static ByteBuffer encode(Request request) {
+		if (protocolVersion >= Protocol.VERSION_BINARY)
+			return Protocol.encodeRequest(request);
+		byte[] text = Protocol.encodeText(request).getBytes(StandardCharsets.UTF_8);
+		return ByteBuffer.allocate(Integer.BYTES + text.length).putInt(text.length).put(text).flip();
+	}
+
+	// Stampa throughput e percentili per richiesta e in totale, e se richiesto li salva in JSON
+	private static void report(Worker[] workers) throws IOException {
+		Stats total = new Stats();
+		long lost = 0;
+		long lastCompletion = endTime;
+		for (Worker worker : workers) {
+			total.add(worker.stats);
+			lost += worker.lostRequests;
+			lastCompletion = Math.max(lastCompletion, worker.lastCompletion);
+		}
+		// Se il server non ha tenuto il ritmo, le ultime risposte arrivano dopo la fine della misura
+		double seconds = (lastCompletion - measureStart) / 1e9;
+
+		Map<String, Object> results = new LinkedHashMap<String, Object>();
+		Map<String, Object> config = new LinkedHashMap<String, Object>();
+		config.put("mode", open ? "open" : "closed");
+		config.put("connections", connections);
+		config.put("selectors", selectors);
+		config.put("pipeline", pipeline);
+		if (open)
+			config.put("rate", rate);
+		else
+			config.put("thinkMs", TimeUnit.NANOSECONDS.toMillis(thinkNanos));
+		config.put("protocol", protocolVersion);
+		config.put("compression", compression);
+		config.put("durationS", seconds);
+		results.put("config", config);
+
+		Metrics.Histogram allCorrected = new Metrics.Histogram();
+		Metrics.Histogram allRaw = new Metrics.Histogram();
+		long allErrors = 0;
+		long completed = 0;
+		Map<String, Object> requests = new LinkedHashMap<String, Object>();
+
+		System.out.printf("%n%-16s %10s %10s %8s %9s %9s %9s %9s %9s%n", "richiesta", "risposte", "req/s", "errori", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+		for (int opcode : MIX_OPCODES) {
+			long count = total.raw[opcode].count();
+			if (count == 0)
+				continue;
+			completed += count;
+			allErrors += total.errors[opcode];
+			allCorrected.add(total.corrected[opcode]);
+			allRaw.add(total.raw[opcode]);
+			requests.put(Protocol.opcodeName(opcode), result(count, seconds, total.errors[opcode], total.corrected[opcode], total.raw[opcode]));
+			print(Protocol.opcodeName(opcode), count, seconds, total.errors[opcode], total.corrected[opcode], total.raw[opcode]);
+		}
+		print("totale", completed, seconds, allErrors, allCorrected, allRaw);
+		requests.put("total", result(completed, seconds, allErrors, allCorrected, allRaw));
+		results.put("requests", requests);
+		results.put("lostRequests", lost);
+
+		System.out.println("Le latenze corrette partono dall'istante previsto per la richiesta, quelle non corrette (tra parentesi) dall'invio");
+		if (lost > 0)
+			System.out.println("Richieste perse su connessioni chiuse dal server: " + lost);
+
+		if (out != null) {
+			Gson gson = new GsonBuilder().setPrettyPrinting().create();
+			try (Writer writer = Files.newBufferedWriter(Paths.get(out), StandardCharsets.UTF_8)) {
+				gson.toJson(results, writer);
+			}
+			System.out.println("Risultati salvati in " + out);
+		}
+	}
+
+	private static void print(String name, long count, double seconds, long errors, Metrics.Histogram corrected, Metrics.Histogram raw) {
+		System.out.printf("%-16s %10d %10.0f %8d %9.2f %9.2f %9.2f %9.2f %9.2f%n", name, count, count / seconds, errors,
+				millis(corrected.percentile(0.5)), millis(corrected.percentile(0.9)), millis(corrected.percentile(0.99)),
+				millis(corrected.percentile(0.999)), millis(corrected.max()));
+		System.out.printf("%-16s %10s %10s %8s %9s %9s %9s %9s %9s%n", "", "", "", "",
+				"(" + String.format("%.2f", millis(raw.percentile(0.5))) + ")", "(" + String.format("%.2f", millis(raw.percentile(0.9))) + ")",
+				"(" + String.format("%.2f", millis(raw.percentile(0.99))) + ")", "(" + String.format("%.2f", millis(raw.percentile(0.999))) + ")",
+				"(" + String.format("%.2f", millis(raw.max())) + ")");
+	}
+
+	private static Map<String, Object> result(long count, double seconds, long errors, Metrics.Histogram corrected, Metrics.Histogram raw) {
+		Map<String, Object> result = new LinkedHashMap<String, Object>();
+		result.put("count", count);
+		result.put("throughput", count / seconds);
+		result.put("errors", errors);
+		result.put("latencyMs", percentiles(corrected));
+		result.put("uncorrectedLatencyMs", percentiles(raw));
+		return result;
+	}
+
+	private static Map<String, Object> percentiles(Metrics.Histogram histogram) {
+		Map<String, Object> values = new LinkedHashMap<String, Object>();
+		values.put("mean", millis(histogram.mean()));
+		values.put("p50", millis(histogram.percentile(0.5)));
+		values.put("p90", millis(histogram.percentile(0.9)));
+		values.put("p99", millis(histogram.percentile(0.99)));
+		values.put("p999", millis(histogram.percentile(0.999)));
+		values.put("max", millis(histogram.max()));
+		return values;
+	}
+
+	private static double millis(double nanos) {
+		return nanos / 1e6;
+	}
+
+}
@@ -0,0 +1,94 @@
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+// Dati sintetici riproducibili per i benchmark, con la stessa forma dei file JSON:
+// hotel distribuiti tra le città con medie, numero di recensioni e data media casuali, utenti e recensioni
+public class SyntheticData {
+
+	private static final String[] SERVICES = { "TV in camera", "Palestra", "Cancellazione gratuita", "Colazione inclusa", "Piscina", "Parcheggio" };
+	private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+	// Le città sono almeno 20, come i capoluoghi dei file originali, poi una ogni 1000 hotel
+	public static int cities(int hotels) {
+		return Math.max(20, hotels / 1000);
+	}
+
+	public static String cityName(int city) {
+		return "Citta " + city;
+	}
+
+	public static String hotelName(int hotel) {
+		return "Hotel " + hotel;
+	}
+
+	// Città dell'hotel, scelta in modo che ogni città abbia lo stesso numero di hotel (più o meno uno)
+	public static int cityOf(int hotel, int hotels) {
+		return hotel % cities(hotels);
+	}
+
+	// Hotel con id da 1 a count. Le totalReviews recensioni sono divise tra gli hotel in modo casuale, con media totalReviews / count
+	public static List<Hotel> hotels(int count, long totalReviews, long seed) {
+		return hotels(count, cities(count), totalReviews, seed);
+	}
+
+	// Hotel con id da 1 a count, tutti nella stessa città, come quelli ordinati da un singolo aggiornamento del ranking
+	public static List<Hotel> cityHotels(int count, long totalReviews, long seed) {
+		return hotels(count, 1, totalReviews, seed);
+	}
+
+	private static List<Hotel> hotels(int count, int cities, long totalReviews, long seed) {
+		SplittableRandom random = new SplittableRandom(seed);
+		long now = System.currentTimeMillis();
+		long averageReviews = totalReviews / Math.max(count, 1);
+		List<Hotel> hotels = new ArrayList<Hotel>(count);
+
+		for (int i = 0; i < count; i++) {
+			String city = cityName(i % cities);
+			String[] services = new String[1 + random.nextInt(SERVICES.length)];
+			for (int j = 0; j < services.length; j++)
+				services[j] = SERVICES[(i + j) % SERVICES.length];
+
+			int reviews = (int) Math.min(Integer.MAX_VALUE, averageReviews == 0 ? 0 : random.nextLong(2 * averageReviews + 1));
+			Rating ratings = new Rating(rating(random), rating(random), rating(random), rating(random));
+			Date avgReviewDate = reviews == 0 ? null : new Date(now - random.nextLong(730) * DAY);
+			hotels.add(new Hotel(i + 1, hotelName(i), "Un hotel sintetico a " + city, city, String.format("347-%07d", i), services,
+					rating(random), ratings, reviews, avgReviewDate));
+		}
+		return hotels;
+	}
+
+	// Utenti con id da 1 a count
+	public static List<User> users(int count) {
+		List<User> users = new ArrayList<User>(count);
+		for (int i = 0; i < count; i++)
+			users.add(new User(i + 1, "utente" + i, "password" + i, 0));
+		return users;
+	}
+
+	// Aggiunge count recensioni casuali all'archivio, di hotel e utenti con id da 1 a hotels e users
+	public static void fillReviews(ReviewStore store, long count, int hotels, int users, long seed) {
+		SplittableRandom random = new SplittableRandom(seed);
+		int today = ReviewStore.toEpochDay(new Date());
+		for (long i = 0; i < count; i++) {
+			store.add(1 + random.nextInt(users), 1 + random.nextInt(hotels), score(random), score(random), score(random), score(random), score(random),
+					today - random.nextInt(730));
+		}
+	}
+
+	// Recensione casuale dell'hotel, come quelle create da insertReview
+	public static Review review(SplittableRandom random, int userId, int hotelId) {
+		return new Review(userId, hotelId, score(random), new Rating(score(random), score(random), score(random), score(random)), new Date());
+	}
+
+	private static float rating(SplittableRandom random) {
+		return 1 + random.nextInt(41) / 10f;
+	}
+
+	private static byte score(SplittableRandom random) {
+		return (byte) (1 + random.nextInt(5));
+	}
+
+}
@@ -0,0 +1,225 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Date;
+import java.util.function.Consumer;
+
+// Snapshot binario compatto di hotel, utenti e recensioni, scritto insieme ai file JSON.
+// Viene letto mappando il file in memoria, così il tempo di avvio dipende dalla lettura da disco e non dal parsing.
+// Formato (big endian): intestazione, poi hotel, utenti e recensioni uno dopo l'altro;
+// le stringhe sono precedute dalla loro lunghezza in byte (-1 se null), le date degli hotel sono millisecondi (NO_DATE se null)
+// e quelle delle recensioni giorni, come nell'archivio delle recensioni
+public class BinarySnapshot {
+
+	private static final int MAGIC = 0x48544C53; // "HTLS"
+	private static final int VERSION = 2;
+	private static final long NO_DATE = Long.MIN_VALUE;
+	// Dimensione massima di ogni porzione di file mappata, perché un singolo mapping è limitato a 2 GB
+	private static final long MAP_SIZE = 1L << 30;
+
+	// True se lo snapshot esiste ed è stato scritto dopo tutti i file JSON indicati
+	public static boolean isNewerThan(String fileName, String... jsonFiles) {
+		try {
+			Path snapshot = Paths.get(fileName);
+			if (!Files.exists(snapshot))
+				return false;
+
+			FileTime snapshotTime = Files.getLastModifiedTime(snapshot);
+			for (String jsonFile : jsonFiles) {
+				Path path = Paths.get(jsonFile);
+				if (Files.exists(path) && Files.getLastModifiedTime(path).compareTo(snapshotTime) >= 0)
+					return false;
+			}
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	// Scrive lo snapshot su un file temporaneo e lo rinomina, così non resta mai scritto a metà.
+	// Delle recensioni vengono scritte le prime reviewCount
+	public static void write(String fileName, Hotel[] hotels, User[] users, ReviewStore reviews, int reviewCount) throws IOException {
+		Path tmpFile = Paths.get(fileName + ".tmp");
+
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpFile), 1 << 16))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(hotels.length);
+			out.writeInt(users.length);
+			out.writeInt(reviewCount);
+
+			for (Hotel hotel : hotels) {
+				out.writeInt(hotel.id());
+				writeString(out, hotel.name);
+				writeString(out, hotel.description);
+				writeString(out, hotel.city);
+				writeString(out, hotel.phone);
+				if (hotel.services == null)
+					out.writeInt(-1);
+				else {
+					out.writeInt(hotel.services.length);
+					for (String service : hotel.services)
+						writeString(out, service);
+				}
+				out.writeFloat(hotel.rate);
+				out.writeFloat(hotel.getCleaningRate());
+				out.writeFloat(hotel.getPositionRate());
+				out.writeFloat(hotel.getServicesRate());
+				out.writeFloat(hotel.getQualityRate());
+				out.writeInt(hotel.reviews());
+				writeDate(out, hotel.getAvgReviewDate());
+			}
+
+			for (User user : users) {
+				out.writeInt(user.getId());
+				writeString(out, user.getUsername());
+				writeString(out, user.getPassword());
+				out.writeInt(user.getReviews());
+			}
+
+			// Ogni recensione occupa 17 byte, come le colonne dell'archivio
+			for (int i = 0; i < reviewCount; i++) {
+				out.writeInt(reviews.userId(i));
+				out.writeInt(reviews.hotelId(i));
+				out.writeByte(reviews.rate(i));
+				out.writeByte(reviews.cleaningRate(i));
+				out.writeByte(reviews.positionRate(i));
+				out.writeByte(reviews.servicesRate(i));
+				out.writeByte(reviews.qualityRate(i));
+				out.writeInt(reviews.epochDay(i));
+			}
+		}
+
+		Files.move(tmpFile, Paths.get(fileName), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	// Legge lo snapshot passando hotel e utenti al rispettivo consumer, e aggiungendo le recensioni all'archivio
+	public static void read(String fileName, Consumer<Hotel> hotelConsumer, Consumer<User> userConsumer, ReviewStore reviewStore) throws IOException {
+		try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+			Reader in = new Reader(channel);
+
+			if (in.getInt() != MAGIC || in.getInt() != VERSION)
+				throw new IOException("Formato dello snapshot non riconosciuto");
+			int hotelCount = in.getInt();
+			int userCount = in.getInt();
+			int reviewCount = in.getInt();
+
+			for (int i = 0; i < hotelCount; i++) {
+				int id = in.getInt();
+				String name = in.getString();
+				String description = in.getString();
+				String city = in.getString();
+				String phone = in.getString();
+				int serviceCount = in.getInt();
+				String[] services = null;
+				if (serviceCount >= 0) {
+					services = new String[serviceCount];
+					for (int j = 0; j < serviceCount; j++)
+						services[j] = in.getString();
+				}
+				float rate = in.getFloat();
+				Rating ratings = new Rating(in.getFloat(), in.getFloat(), in.getFloat(), in.getFloat());
+				int reviews = in.getInt();
+				Date avgReviewDate = in.getDate();
+				hotelConsumer.accept(new Hotel(id, name, description, city, phone, services, rate, ratings, reviews, avgReviewDate));
+			}
+
+			for (int i = 0; i < userCount; i++) {
+				int id = in.getInt();
+				String username = in.getString();
+				String password = in.getString();
+				userConsumer.accept(new User(id, username, password, in.getInt()));
+			}
+
+			for (int i = 0; i < reviewCount; i++) {
+				int userId = in.getInt();
+				int hotelId = in.getInt();
+				reviewStore.add(userId, hotelId, in.getByte(), in.getByte(), in.getByte(), in.getByte(), in.getByte(), in.getInt());
+			}
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static void writeDate(DataOutputStream out, Date date) throws IOException {
+		out.writeLong(date == null ? NO_DATE : date.getTime());
+	}
+
+	// Lettura sequenziale del file mappato a porzioni di al più MAP_SIZE byte
+	private static class Reader {
+		private final FileChannel channel;
+		private final long size;
+		private long mappedFrom; // Posizione nel file del primo byte mappato
+		private MappedByteBuffer buffer;
+
+		private Reader(FileChannel channel) throws IOException {
+			this.channel = channel;
+			this.size = channel.size();
+			map(0);
+		}
+
+		private void map(long position) throws IOException {
+			mappedFrom = position;
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_SIZE, size - position));
+		}
+
+		// Se il prossimo valore supera la porzione mappata, mappo la successiva a partire dalla posizione corrente
+		private void ensure(int bytes) throws IOException {
+			if (buffer.remaining() >= bytes)
+				return;
+			map(mappedFrom + buffer.position());
+			if (buffer.remaining() < bytes)
+				throw new EOFException("Snapshot troncato");
+		}
+
+		private int getInt() throws IOException {
+			ensure(Integer.BYTES);
+			return buffer.getInt();
+		}
+
+		private byte getByte() throws IOException {
+			ensure(Byte.BYTES);
+			return buffer.get();
+		}
+
+		private float getFloat() throws IOException {
+			ensure(Float.BYTES);
+			return buffer.getFloat();
+		}
+
+		private Date getDate() throws IOException {
+			ensure(Long.BYTES);
+			long time = buffer.getLong();
+			return time == NO_DATE ? null : new Date(time);
+		}
+
+		private String getString() throws IOException {
+			int length = getInt();
+			if (length < 0)
+				return null;
+			ensure(length);
+			byte[] bytes = new byte[length];
+			buffer.get(bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+	}
+
+}
@@ -0,0 +1,108 @@
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Pool di ByteBuffer diretti divisi per classi di dimensione (potenze di 2), condiviso tra reactor e worker.
+// I buffer vengono presi in prestito per leggere le richieste e scrivere le risposte, e restituiti quando non servono più
+public class BufferPool {
+
+	private static final int MIN_CLASS_SHIFT = 6; // Classe più piccola: 64 byte
+	private static final int MAX_CLASS_SHIFT = 20; // Classe più grande: 1 MB, oltre non conviene trattenerli
+
+	private final boolean enabled;
+	private final int maxBuffersPerClass;
+	private final Queue<ByteBuffer>[] classes;
+	private final AtomicInteger[] classSizes;
+
+	// Statistiche per misurare l'efficacia del pool
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	public BufferPool(boolean enabled, int maxBuffersPerClass) {
+		this.enabled = enabled;
+		this.maxBuffersPerClass = maxBuffersPerClass;
+		// Java non permette di creare array generici: il cast è sicuro perché l'array contiene solo code di ByteBuffer e non esce dalla classe
+		@SuppressWarnings("unchecked")
+		Queue<ByteBuffer>[] classes = (Queue<ByteBuffer>[]) new Queue<?>[MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1];
+		this.classes = classes;
+		this.classSizes = new AtomicInteger[classes.length];
+		for (int i = 0; i < classes.length; i++) {
+			classes[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+			classSizes[i] = new AtomicInteger();
+		}
+	}
+
+	// Restituisce un buffer vuoto di almeno size byte
+	public ByteBuffer acquire(int size) {
+		// Pool disabilitato: normali buffer nello heap
+		if (!enabled)
+			return ByteBuffer.allocate(size);
+
+		int sizeClass = sizeClass(size);
+
+		// Troppo grande per essere trattenuto nel pool, uso un buffer nello heap usa e getta
+		if (sizeClass >= classes.length) {
+			misses.increment();
+			return ByteBuffer.allocate(size);
+		}
+
+		ByteBuffer buffer = classes[sizeClass].poll();
+		if (buffer == null) {
+			misses.increment();
+			return ByteBuffer.allocateDirect(1 << (sizeClass + MIN_CLASS_SHIFT));
+		}
+
+		classSizes[sizeClass].decrementAndGet();
+		hits.increment();
+		buffer.clear();
+		return buffer;
+	}
+
+	// Restituisce il buffer al pool, dopo questa chiamata non deve più essere usato
+	public void release(ByteBuffer buffer) {
+		if (!enabled || buffer == null || !buffer.isDirect())
+			return;
+
+		int sizeClass = sizeClass(buffer.capacity());
+
+		// Non è un buffer del pool, oppure la classe è già piena
+		if (sizeClass >= classes.length || buffer.capacity() != 1 << (sizeClass + MIN_CLASS_SHIFT))
+			return;
+		if (classSizes[sizeClass].incrementAndGet() > maxBuffersPerClass) {
+			classSizes[sizeClass].decrementAndGet();
+			return;
+		}
+
+		classes[sizeClass].add(buffer);
+	}
+
+	// Capacità del buffer che acquire restituirebbe per size byte
+	public int acquireSize(int size) {
+		int sizeClass = sizeClass(size);
+		if (!enabled || sizeClass >= classes.length)
+			return size;
+		return 1 << (sizeClass + MIN_CLASS_SHIFT);
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public long hits() {
+		return hits.sum();
+	}
+
+	public long misses() {
+		return misses.sum();
+	}
+
+	// Indice della classe più piccola che contiene size byte
+	private static int sizeClass(int size) {
+		if (size <= 1 << MIN_CLASS_SHIFT)
+			return 0;
+		return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_CLASS_SHIFT;
+	}
+
+}
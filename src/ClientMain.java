@@ -1,18 +1,26 @@
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.lang.Exception;
-import java.net.ConnectException;
 import java.net.InetSocketAddress;
-import java.nio.ByteBuffer;
-import java.nio.channels.SocketChannel;
 import java.util.InputMismatchException;
+import java.util.List;
 import java.util.Properties;
 import java.util.Scanner;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+// Interfaccia testuale del client: la comunicazione con il server è gestita da HotelierClient
 public class ClientMain {
 	
+	// Gli hotel ricevuti vengono mostrati all'utente in JSON formattato
+	private static final Gson gson = new GsonBuilder().setPrettyPrinting().setDateFormat("dd-MM-yyyy").create();
 	private static final String configFile = "client.config";
 	private static final String commonConfigFile = "server.config";
 	
@@ -22,10 +30,10 @@ public class ClientMain {
 	private static String exitMessage;
 	private static String multicastAddress;
 	private static int multicastPort;
+	private static int protocolVersion;
+	private static boolean compression;
+	private static int maxReconnects;
 	
-	private static boolean authenticated = false;
-
-	private static ByteBuffer buffer;
 	private static Scanner in = new Scanner(System.in);
 	
 	private static BlockingQueue<String> notificationsQueue = new LinkedBlockingQueue<String>();
@@ -33,24 +41,23 @@ public class ClientMain {
 	public static void main(String[] args) {
 		
 		loadConfig();
-		buffer = ByteBuffer.allocate(bufferSize);
 		Thread notificationHandler = new NotificationHandler(bufferSize, multicastAddress, multicastPort, notificationsQueue);
 		
-		InetSocketAddress serverAddress = new InetSocketAddress(SERVER_IP, PORT);
-		SocketChannel server = null;
+		HotelierClient client = null;
 		try {
 			
-		    while (server == null) {
-		        try {
-		        	// Apro la connessione con il server
-		            server = SocketChannel.open(serverAddress);
-		        } catch (ConnectException e) {
-		        	// Riprovo ogni tot per vedere se il server torna raggiungibile
-		            System.out.println("Server non raggiungibile, riprovo più tardi...");
-		            Thread.sleep(5000);
-		        }
-		    }
-			
+			// Il client apre la connessione con il server (e se configurato chiede il protocollo binario e/o la compressione delle risposte),
+			// riprovando finché il server non è raggiungibile
+			client = new HotelierClient(new InetSocketAddress(SERVER_IP, PORT), protocolVersion, compression, 1, exitMessage, maxReconnects);
+			while (true) {
+				try {
+					client.connected().get(5, TimeUnit.SECONDS);
+					break;
+				} catch (TimeoutException e) {
+					System.out.println("Server non raggiungibile, riprovo più tardi...");
+				}
+			}
+
 		    // Faccio partire il thread che aspetta continuamente la ricezione di notifiche
 			notificationHandler.start();
 			
@@ -60,6 +67,7 @@ public class ClientMain {
 				while (!notificationsQueue.isEmpty())
 					System.out.println("Notifica ricevuta: " + notificationsQueue.poll() + "\n");
 
+				boolean authenticated = client.isAuthenticated();
 				System.out.print("- Menu -\n"
 						+ " 1) Registrati\n"
 						+ " 2) " + (authenticated ? "Logout\n" : "Login\n")
@@ -81,10 +89,8 @@ public class ClientMain {
 					in.nextLine(); // Consume newline leftover
 				}
 				
-				if (choice == 0) {
-					handleExit(server);
+				if (choice == 0)
 					break;
-				}
 				
 				if (choice < 1 || choice > 6 || (!authenticated && choice > 4)) {
 					System.out.println("\nScelta non valida, riprova\n");
@@ -93,28 +99,33 @@ public class ClientMain {
 				
 				System.out.println();
 				
-				switch (choice) {
-					case 1:
-						handleRegister(server);
-					break;
-					case 2:
-						if (!authenticated)
-							handleLogin(server);
-						else
-							handleLogout(server);
-					break;
-					case 3:
-						handleSearchHotel(server);
-					break;
-					case 4:
-						handleSearchAllHotels(server);
-					break;
-					case 5:
-						handleInsertReview(server);
-					break;
-					case 6:
-						handleShowBadge(server);
-					break;
+				try {
+					switch (choice) {
+						case 1:
+							handleRegister(client);
+						break;
+						case 2:
+							if (!authenticated)
+								handleLogin(client);
+							else
+								handleLogout(client);
+						break;
+						case 3:
+							handleSearchHotel(client);
+						break;
+						case 4:
+							handleSearchAllHotels(client);
+						break;
+						case 5:
+							handleInsertReview(client);
+						break;
+						case 6:
+							handleShowBadge(client);
+						break;
+					}
+				} catch (IOException e) {
+					// Il client si riconnette da solo, l'utente può ripetere l'operazione
+					System.out.println("\nErrore di comunicazione con il server, riprova tra poco");
 				}
 			
 				System.out.println();
@@ -127,13 +138,13 @@ public class ClientMain {
 		
 			System.out.println("\nArrivederci");
 
-			// Chiudo gli oggetti aperti
+			// Chiudo gli oggetti aperti, inviando il messaggio di uscita al server
 			in.close();
 			notificationHandler.interrupt();
 			
 			try {
-				if (server != null)
-					server.close();
+				if (client != null)
+					client.close();
 				notificationHandler.join();
 			} catch (Exception e) {}
 
@@ -151,6 +162,9 @@ public class ClientMain {
 		) {
 		    props.load(fis);
 		    SERVER_IP = props.getProperty("SERVER_IP");
+		    protocolVersion = Integer.parseInt(props.getProperty("protocolVersion", "1"));
+		    compression = Boolean.parseBoolean(props.getProperty("compression", "false"));
+		    maxReconnects = Integer.parseInt(props.getProperty("maxReconnects", Integer.toString(HotelierClient.DEFAULT_MAX_RECONNECTS)));
 		    
 		    props.load(commonFis);
 		    PORT = Integer.parseInt(props.getProperty("PORT"));
@@ -164,16 +178,15 @@ public class ClientMain {
 		}
 	}
 	
-	private static void handleRegister(SocketChannel server) throws IOException {
+	private static void handleRegister(HotelierClient client) throws IOException {
 		System.out.println("- Registrazione -");
 		System.out.print("Username: ");
 		String username = in.nextLine().trim();
 		System.out.print("Password: ");
 		String password = in.nextLine().trim();
 		
-		// Costruisco la richiesta, la mando al server e aspetto la risposta
-		String request = String.format("1;%s;%s", username, password);
-		int response = sendToServerWithResponseCode(request, server);
+		// Mando la richiesta al server e aspetto la risposta
+		int response = await(client.register(username, password));
 
 		System.out.println();
 		
@@ -187,20 +200,18 @@ public class ClientMain {
 			System.out.println("Errore: Username già esistente");
 	}
 	
-	private static void handleLogout(SocketChannel server) throws IOException {
-		// Costruisco la richiesta, la mando al server e aspetto la risposta
-		String request = "2";
-		int response = sendToServerWithResponseCode(request, server);
+	private static void handleLogout(HotelierClient client) throws IOException {
+		// Mando la richiesta al server e aspetto la risposta
+		int response = await(client.logout());
 		
-		if (response == 0) {
+		if (response == 0)
 			System.out.println("Logout effettuato con successo");
-			authenticated = false;
-		} else
+		else
 			System.out.println("Errore nel logout");
 	}
 	
-	private static void handleLogin(SocketChannel server) throws IOException {
-		if (authenticated) {
+	private static void handleLogin(HotelierClient client) throws IOException {
+		if (client.isAuthenticated()) {
 			System.out.println("Errore: Login già effettuato");
 			return;
 		}
@@ -211,58 +222,54 @@ public class ClientMain {
 		System.out.print("Password: ");
 		String password = in.nextLine().trim();
 
-		// Costruisco la richiesta, la mando al server e aspetto la risposta
-		String request = String.format("2;%s;%s", username, password);
-		int response = sendToServerWithResponseCode(request, server);
+		// Mando la richiesta al server e aspetto la risposta
+		int response = await(client.login(username, password));
 		
 		System.out.println();
 		
-		if (response == 0) {
-			authenticated = true;
+		if (response == 0)
 			System.out.println("Buongiorno " + username + ", bentornato su HOTELIER");
-		} else if (response == 1)
+		else if (response == 1)
 			System.out.println("Errore: Username e/o Password errati");
 	}
 	
-	private static void handleSearchHotel(SocketChannel server) throws IOException {
+	private static void handleSearchHotel(HotelierClient client) throws IOException {
 		System.out.println("- Ricerca per hotel -");
 		System.out.print("Nome Hotel: ");
 		String hotelName = in.nextLine().trim();
 		System.out.print("Città di riferimento: ");
 		String cityName = in.nextLine().trim();
 
-		// Costruisco la richiesta, la mando al server e aspetto la risposta
-		String request = String.format("3;%s;%s", hotelName, cityName);
-		String response = sendToServerWithResponseString(request, server);
+		// Mando la richiesta al server e aspetto la risposta
+		Hotel hotel = await(client.searchHotel(hotelName, cityName));
 		
 		System.out.println();
 		
-		if (!response.equals("")) {
+		if (hotel != null) {
 			System.out.println("- Hotel trovato -\n");
-			System.out.println(response);
+			System.out.println(gson.toJson(hotel));
 		} else
 			System.out.println("- Hotel non trovato -");
 	}
 	
-	private static void handleSearchAllHotels(SocketChannel server) throws IOException {
+	private static void handleSearchAllHotels(HotelierClient client) throws IOException {
 		System.out.println("- Ricerca per città -");
 		System.out.print("Nome città: ");
 		String cityName = in.nextLine().trim();
 
-		// Costruisco la richiesta, la mando al server e aspetto la risposta
-		String request = String.format("4;%s", cityName);
-		String response = sendToServerWithResponseString(request, server);
+		// Mando la richiesta al server e aspetto la risposta
+		List<Hotel> hotels = await(client.searchAllHotels(cityName));
 		
 		System.out.println();
 		
-		if (!response.equals("")) {
+		if (!hotels.isEmpty()) {
 			System.out.println("- Hotel trovati a " + cityName + " -\n");
-			System.out.println(response);
+			System.out.println(gson.toJson(hotels));
 		} else
 			System.out.println("- Nessun Hotel trovato a " + cityName + " -");
 	}
 	
-	private static void handleInsertReview(SocketChannel server) throws IOException {
+	private static void handleInsertReview(HotelierClient client) throws IOException {
 		System.out.println("- Recensisci hotel -");
 		System.out.print("Nome Hotel: ");
 		String hotelName = in.nextLine().trim();
@@ -274,9 +281,8 @@ public class ClientMain {
 	    int servicesRate = getScore("Valutazione servizi (1-5): ");
 	    int qualityRate = getScore("Valutazione prezzo (1-5): ");
 
-		// Costruisco la richiesta, la mando al server e aspetto la risposta
-		String request = String.format("5;%s;%s;%d;%d;%d;%d;%d", hotelName, cityName, rate, cleaningRate, positionRate, servicesRate, qualityRate);
-		int responseCode = sendToServerWithResponseCode(request, server);
+		// Mando la richiesta al server e aspetto la risposta
+		int responseCode = await(client.insertReview(hotelName, cityName, new int[] {rate, cleaningRate, positionRate, servicesRate, qualityRate}));
 		
 		System.out.println();
 		
@@ -288,71 +294,25 @@ public class ClientMain {
 			System.out.println("Errore nella richiesta");
 	}
 	
-	private static void handleShowBadge(SocketChannel server) throws IOException {
-		// Costruisco la richiesta, la mando al server e aspetto la risposta
-		String request = "6";
-		String response = sendToServerWithResponseString(request, server);
+	private static void handleShowBadge(HotelierClient client) throws IOException {
+		// Mando la richiesta al server e aspetto la risposta
+		String response = await(client.showBadge());
 		
 		System.out.println("Il tuo livello di esperienza è: " + response);
 	}
 	
-	private static void handleExit(SocketChannel server) throws IOException {
-		sendToServerWithResponseCode(exitMessage, server);
-	}
-
-	// Costruisco il buffer con la richiesta, la invio al server e ricevo la risposta su quello stesso buffer
-	private static int sendToServerWithResponseCode(String request, SocketChannel server) throws IOException {
-		buffer.clear();
-		buffer.putInt(request.length());
-		buffer.put(request.getBytes());
-		buffer.flip();
-		server.write(buffer);
-		
-		// Se esco non aspetto la risposta
-		if (request.equalsIgnoreCase(exitMessage))
-			return 0;
-		
-		buffer.clear();
-		server.read(buffer);
-		buffer.flip();
-
-		// Response code
-		return buffer.getInt();
-	}
-
-	// Costruisco il buffer con la richiesta, la invio al server e ricevo la risposta su quello stesso buffer
-	private static String sendToServerWithResponseString(String request, SocketChannel server) throws IOException {
-	    buffer.clear();
-	    buffer.putInt(request.length());
-	    buffer.put(request.getBytes());
-	    buffer.flip();
-	    server.write(buffer);
-
-	    buffer.clear();
-	    int bytesRead = server.read(buffer);
-
-	    buffer.flip();
-	    int responseLength = buffer.getInt();
-	    byte[] responseBytes = new byte[responseLength];
-	    int totalBytesRead = bytesRead - Integer.BYTES; // Considero solo il messaggio effettivo
-	    buffer.get(responseBytes, 0, totalBytesRead);
-
-	    // Se il buffer non riesce a contenere tutto il messaggio di risposta, devo leggere più volte dal server
-	    // e costruire incrementalmente la stringa ricevuta
-	    while (totalBytesRead < responseLength) {
-	        buffer.clear();
-	        bytesRead = server.read(buffer);
-
-	        if (bytesRead == -1) {
-	            throw new IOException("Premature end of stream");
-	        }
-
-	        buffer.flip();
-	        buffer.get(responseBytes, totalBytesRead, bytesRead);
-	        totalBytesRead += bytesRead;
-	    }
-
-	    return new String(responseBytes);
+	// Attendo la risposta del server; se la connessione è stata persa lancio l'errore di comunicazione
+	private static <T> T await(Future<T> response) throws IOException {
+		try {
+			return response.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		}
 	}
 
 	// Leggo da tastiera i punteggi per la recensione, con appositi controlli
@@ -26,6 +26,28 @@ public class Hotel {
 		this.avgReviewDate = null;
 	}
 	
+	// Hotel con le medie già calcolate, letto da uno snapshot
+	public Hotel(int id, String name, String description, String city, String phone, String[] services, float rate, Rating ratings, int reviews, Date avgReviewDate) {
+		this(id, name, description, city, phone, services, rate, ratings, reviews);
+		this.avgReviewDate = avgReviewDate;
+	}
+	
+	// Copia dell'hotel con i valori attuali delle medie, usata per gli snapshot
+	public Hotel(Hotel other) {
+		synchronized (other) {
+			this.id = other.id;
+			this.name = other.name;
+			this.description = other.description;
+			this.city = other.city;
+			this.phone = other.phone;
+			this.services = other.services;
+			this.rate = other.rate;
+			this.ratings = new Rating(other.getCleaningRate(), other.getPositionRate(), other.getServicesRate(), other.getQualityRate());
+			this.reviews = other.reviews;
+			this.avgReviewDate = other.avgReviewDate;
+		}
+	}
+	
 	@Override
 	public boolean equals(Object obj) {
 	    if (this == obj)
@@ -83,7 +105,7 @@ public class Hotel {
 	}
 	
 	// Aggiorna tutte le medie dei parametri
-	public void newReview(Review review) {
+	public synchronized void newReview(Review review) {
 		if (avgReviewDate == null)
 			avgReviewDate = review.getDate();
 		else {
@@ -1,30 +1,88 @@
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
-import java.util.Date;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 public class HotelComparator implements Comparator<Hotel> {
 
 	@Override
 	public int compare(Hotel o1, Hotel o2) {
-		// Ordinamento decrescente per la classifica
-		if (calculateRanking(o2) - calculateRanking(o1) < 0)
-			return -1;
-		else
-			return 1;
+		// Ordinamento decrescente per la classifica, a parità di punteggio per id crescente
+		long now = System.currentTimeMillis();
+		int result = Double.compare(calculateRanking(o2, now), calculateRanking(o1, now));
+		if (result != 0)
+			return result;
+		return Integer.compare(o1.id(), o2.id());
 	}
-	
-	private double calculateRanking(Hotel h) {
+
+	// Ordina gli hotel come compare, ma calcola il punteggio di ogni hotel una volta sola
+	// e con lo stesso istante di riferimento, poi ordina gli indici in base ai punteggi
+	public List<Hotel> sortByRanking(List<Hotel> hotels) {
+		Hotel[] hotelArray = hotels.toArray(new Hotel[0]);
+		int n = hotelArray.length;
+		long now = System.currentTimeMillis();
+
+		double[] scores = new double[n];
+		int[] ids = new int[n];
+		int[] indexes = new int[n];
+		for (int i = 0; i < n; i++) {
+			scores[i] = calculateRanking(hotelArray[i], now);
+			ids[i] = hotelArray[i].id();
+			indexes[i] = i;
+		}
+
+		mergeSort(indexes, new int[n], 0, n, scores, ids);
+
+		Hotel[] sorted = new Hotel[n];
+		for (int i = 0; i < n; i++)
+			sorted[i] = hotelArray[indexes[i]];
+		return Collections.unmodifiableList(Arrays.asList(sorted));
+	}
+
+	// Merge sort stabile degli indici tra from (incluso) e to (escluso): punteggio decrescente, poi id crescente
+	private static void mergeSort(int[] indexes, int[] tmp, int from, int to, double[] scores, int[] ids) {
+		if (to - from < 2)
+			return;
+
+		int mid = (from + to) >>> 1;
+		mergeSort(indexes, tmp, from, mid, scores, ids);
+		mergeSort(indexes, tmp, mid, to, scores, ids);
+
+		// Le due metà sono già in ordine
+		if (!before(indexes[mid], indexes[mid - 1], scores, ids))
+			return;
+
+		System.arraycopy(indexes, from, tmp, from, to - from);
+		int left = from, right = mid;
+		for (int i = from; i < to; i++) {
+			if (right >= to || (left < mid && !before(tmp[right], tmp[left], scores, ids)))
+				indexes[i] = tmp[left++];
+			else
+				indexes[i] = tmp[right++];
+		}
+	}
+
+	// True se l'hotel di indice a va prima dell'hotel di indice b
+	private static boolean before(int a, int b, double[] scores, int[] ids) {
+		if (scores[a] != scores[b])
+			return scores[a] > scores[b];
+		return ids[a] < ids[b];
+	}
+
+	// Punteggio dell'hotel, calcolato rispetto all'istante now (in millisecondi)
+	public static double calculateRanking(Hotel h, long now) {
 		double ratingWeight = h.rate * 0.4 + h.getCleaningRate() * 0.15 + h.getPositionRate() * 0.15 + h.getQualityRate() * 0.15 + h.getServicesRate() * 0.15;
 		double reviewsWeight = Math.log10(h.reviews() + 1);
 		double actualityRate;
-		
+
 		if (h.getAvgReviewDate() == null)
 			actualityRate = 0;
 		else {
-			long daysFromAvgDate = TimeUnit.DAYS.convert( (new Date()).getTime() - h.getAvgReviewDate().getTime(), TimeUnit.MILLISECONDS );
+			long daysFromAvgDate = TimeUnit.DAYS.convert( now - h.getAvgReviewDate().getTime(), TimeUnit.MILLISECONDS );
 			actualityRate = Math.exp(-0.01 * daysFromAvgDate);
 		}
-		
+
 		return (ratingWeight * 0.6) + (reviewsWeight * 0.05) + (actualityRate * 0.35);
 	}
 
@@ -0,0 +1,572 @@
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.reflect.TypeToken;
+
+// Client asincrono del server Hotelier: ogni richiesta ritorna subito un CompletableFuture, completato con la risposta decodificata.
+// Le connessioni sono gestite da un unico thread con un selector: più richieste possono essere in corso sulla stessa connessione,
+// e le risposte, che il server invia nell'ordine delle richieste, vengono associate ad esse in ordine di invio.
+// Le risposte vengono ricostruite anche se arrivano in più letture, e decompresse se necessario.
+// Con più connessioni, le richieste legate alla sessione (login, logout, recensioni, badge e batch) usano sempre la prima,
+// le altre sono distribuite a turno. Una connessione persa viene riaperta con attese crescenti; le richieste in corso falliscono,
+// quelle non ancora inviate partono dopo la riconnessione, e se l'utente era autenticato il login viene ripetuto automaticamente.
+// Dopo maxReconnects tentativi falliti di fila, le richieste in attesa falliscono invece di aspettare il server.
+// I future vengono completati dal thread del client, quindi le loro callback non devono bloccarsi
+public class HotelierClient implements AutoCloseable {
+
+	private static final long INITIAL_BACKOFF = TimeUnit.MILLISECONDS.toNanos(100);
+	private static final long MAX_BACKOFF = TimeUnit.SECONDS.toNanos(5);
+	private static final int INITIAL_BUFFER_SIZE = 1024;
+	// Circa 3 secondi di tentativi con le attese crescenti
+	public static final int DEFAULT_MAX_RECONNECTS = 5;
+
+	private static final Gson gson = new GsonBuilder().setDateFormat("dd-MM-yyyy").create();
+	private static final Type HOTEL_LIST = new TypeToken<List<Hotel>>() {}.getType();
+
+	// Come decodificare la risposta di una richiesta
+	private enum ResponseType {
+		HANDSHAKE, CODE, HOTEL, HOTELS, STRING, BATCH
+	}
+
+	// Richiesta da inviare o in attesa di risposta
+	private static final class Call {
+		private final Request request;
+		private final ResponseType type;
+		private final CompletableFuture<Object> future = new CompletableFuture<Object>();
+
+		Call(Request request, ResponseType type) {
+			this.request = request;
+			this.type = type;
+		}
+	}
+
+	private enum State {
+		DISCONNECTED, CONNECTING, HANDSHAKING, READY
+	}
+
+	// Stato di una connessione, usato solo dal thread del client tranne la coda delle richieste inviate dagli altri thread
+	private final class Connection {
+		private final boolean primary;
+		private final Queue<Call> submitted = new ConcurrentLinkedQueue<Call>();
+		private final ArrayDeque<Call> waiting = new ArrayDeque<Call>(); // Da inviare quando la connessione è pronta
+		private final ArrayDeque<Call> inFlight = new ArrayDeque<Call>(); // Inviate, in attesa di risposta
+		private SocketChannel channel;
+		private SelectionKey key;
+		private volatile State state = State.DISCONNECTED;
+		private ByteBuffer output = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+		private ByteBuffer input = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+		private final Inflater inflater = new Inflater();
+		private boolean binary = false; // True se il server ha accettato il protocollo binario
+		private long backoff = INITIAL_BACKOFF;
+		private long reconnectAt = 0;
+		private int failedAttempts = 0; // Tentativi di connessione falliti dall'ultima volta che la connessione era pronta
+
+		Connection(boolean primary) {
+			this.primary = primary;
+		}
+	}
+
+	private final InetSocketAddress address;
+	private final int protocolVersion;
+	private final boolean compression;
+	private final String exitMessage;
+	private final int maxReconnects;
+	private final Connection[] connections;
+	private final Selector selector;
+	private final Thread ioThread;
+	private volatile boolean closed = false;
+	private int nextConnection = 0;
+
+	// Completato quando la prima connessione è pronta
+	private final CompletableFuture<Void> connected = new CompletableFuture<Void>();
+
+	// Stato della sessione sul server, aggiornato dalle risposte ai login e usato per ripetere il login dopo una riconnessione
+	private volatile boolean authenticated = false;
+	private String username;
+	private String password;
+
+	// protocolVersion e compression vengono richiesti al server con l'handshake; exitMessage è il messaggio di uscita della versione 1
+	public HotelierClient(InetSocketAddress address, int protocolVersion, boolean compression, int connectionCount, String exitMessage) throws IOException {
+		this(address, protocolVersion, compression, connectionCount, exitMessage, DEFAULT_MAX_RECONNECTS);
+	}
+
+	// maxReconnects: tentativi di riconnessione falliti dopo cui le richieste in attesa falliscono (0 per attendere sempre)
+	public HotelierClient(InetSocketAddress address, int protocolVersion, boolean compression, int connectionCount, String exitMessage,
+			int maxReconnects) throws IOException {
+		this.address = address;
+		this.protocolVersion = protocolVersion;
+		this.compression = compression;
+		this.exitMessage = exitMessage;
+		this.maxReconnects = maxReconnects;
+		this.connections = new Connection[Math.max(1, connectionCount)];
+		for (int i = 0; i < connections.length; i++)
+			connections[i] = new Connection(i == 0);
+		this.selector = Selector.open();
+		this.ioThread = new Thread(this::run, "hotelier-client");
+		this.ioThread.setDaemon(true);
+		this.ioThread.start();
+	}
+
+	// Completato quando la prima connessione è pronta. Le richieste possono essere inviate anche prima,
+	// e partono appena possibile
+	public CompletableFuture<Void> connected() {
+		return connected;
+	}
+
+	public boolean isAuthenticated() {
+		return authenticated;
+	}
+
+	// Codice 0 se la registrazione è avvenuta, 1 o 2 se manca username o password, 3 se lo username esiste già
+	public CompletableFuture<Integer> register(String username, String password) {
+		return submit(new Request(Protocol.REGISTER, username, password, null), ResponseType.CODE, false);
+	}
+
+	// Codice 0 se il login è avvenuto, 1 se le credenziali sono errate. Se la sessione è già autenticata il server effettua il logout
+	public CompletableFuture<Integer> login(String username, String password) {
+		return submit(new Request(Protocol.LOGIN, username, password, null), ResponseType.CODE, true);
+	}
+
+	// Codice 0 se il logout è avvenuto
+	public CompletableFuture<Integer> logout() {
+		return submit(new Request(Protocol.LOGIN, null, null, null), ResponseType.CODE, true);
+	}
+
+	// Hotel con nome e città indicati, oppure null se non esiste
+	public CompletableFuture<Hotel> searchHotel(String hotelName, String cityName) {
+		return submit(new Request(Protocol.SEARCH_HOTEL, hotelName, cityName, null), ResponseType.HOTEL, false);
+	}
+
+	// Hotel della città ordinati per ranking, lista vuota se non ce ne sono
+	public CompletableFuture<List<Hotel>> searchAllHotels(String cityName) {
+		return submit(new Request(Protocol.SEARCH_ALL_HOTELS, cityName, null, null), ResponseType.HOTELS, false);
+	}
+
+	// Rates: valutazione generale, pulizia, posizione, servizi e prezzo (1-5).
+	// Codice 0 se la recensione è stata inserita, 1 se l'hotel non esiste, 2 se la richiesta non è valida o l'utente non è autenticato
+	public CompletableFuture<Integer> insertReview(String hotelName, String cityName, int[] rates) {
+		return submit(new Request(Protocol.INSERT_REVIEW, hotelName, cityName, rates), ResponseType.CODE, true);
+	}
+
+	// Livello di esperienza dell'utente autenticato
+	public CompletableFuture<String> showBadge() {
+		return submit(new Request(Protocol.SHOW_BADGE, null, null, null), ResponseType.STRING, true);
+	}
+
+	// Snapshot delle metriche del server, in JSON
+	public CompletableFuture<String> metrics() {
+		return submit(new Request(Protocol.METRICS, null, null, null), ResponseType.STRING, false);
+	}
+
+	// Esegue le richieste in un unico messaggio. I risultati sono il contenuto delle singole risposte, nell'ordine delle richieste
+	public CompletableFuture<List<ByteBuffer>> batch(Request... requests) {
+		return submit(Request.batch(requests), ResponseType.BATCH, true);
+	}
+
+	// Chiude tutte le connessioni: le richieste non ancora completate falliscono
+	@Override
+	public void close() {
+		closed = true;
+		selector.wakeup();
+		try {
+			ioThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T> CompletableFuture<T> submit(Request request, ResponseType type, boolean session) {
+		Call call = new Call(request, type);
+		if (closed) {
+			call.future.completeExceptionally(new IOException("Client chiuso"));
+			return (CompletableFuture<T>) call.future;
+		}
+		connection(session).submitted.add(call);
+		selector.wakeup();
+		return (CompletableFuture<T>) call.future;
+	}
+
+	// Le richieste di sessione usano la prima connessione, le altre la prossima connessione pronta
+	private Connection connection(boolean session) {
+		if (session || connections.length == 1)
+			return connections[0];
+		synchronized (connections) {
+			for (int i = 0; i < connections.length; i++) {
+				Connection connection = connections[nextConnection];
+				nextConnection = (nextConnection + 1) % connections.length;
+				if (connection.state == State.READY)
+					return connection;
+			}
+			return connections[0];
+		}
+	}
+
+	// Ciclo del thread del client
+	private void run() {
+		try {
+			while (!closed) {
+				long now = System.nanoTime();
+				long timeout = TimeUnit.SECONDS.toNanos(1);
+				for (Connection connection : connections) {
+					if (connection.state == State.DISCONNECTED) {
+						if (connection.reconnectAt <= now)
+							connect(connection);
+						else
+							timeout = Math.min(timeout, connection.reconnectAt - now);
+					}
+					takeSubmitted(connection);
+				}
+
+				selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(timeout)));
+				for (SelectionKey key : selector.selectedKeys()) {
+					Connection connection = (Connection) key.attachment();
+					try {
+						if (key.isValid() && key.isConnectable())
+							finishConnect(connection);
+						if (key.isValid() && key.isWritable())
+							flush(connection);
+						if (key.isValid() && key.isReadable())
+							read(connection);
+					} catch (IOException | RuntimeException e) {
+						disconnect(connection, e);
+					}
+				}
+				selector.selectedKeys().clear();
+			}
+		} catch (IOException e) {
+			connected.completeExceptionally(e);
+		} finally {
+			shutdown();
+		}
+	}
+
+	// Apertura non bloccante della connessione
+	private void connect(Connection connection) {
+		try {
+			connection.channel = SocketChannel.open();
+			connection.channel.configureBlocking(false);
+			connection.channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			connection.state = State.CONNECTING;
+			if (connection.channel.connect(address)) {
+				connection.key = connection.channel.register(selector, SelectionKey.OP_READ, connection);
+				connected(connection);
+			} else
+				connection.key = connection.channel.register(selector, SelectionKey.OP_CONNECT, connection);
+		} catch (IOException e) {
+			disconnect(connection, e);
+		}
+	}
+
+	private void finishConnect(Connection connection) throws IOException {
+		if (!connection.channel.finishConnect())
+			return;
+		connection.key.interestOps(SelectionKey.OP_READ);
+		connected(connection);
+	}
+
+	// Connessione aperta: se serve invio l'handshake, che va completato prima di codificare altre richieste
+	private void connected(Connection connection) throws IOException {
+		connection.binary = false;
+		connection.output.clear();
+		connection.input.clear();
+		if (protocolVersion >= Protocol.VERSION_BINARY || compression) {
+			connection.state = State.HANDSHAKING;
+			send(connection, new Call(Request.handshake(protocolVersion, compression ? Protocol.FLAG_COMPRESSION : 0), ResponseType.HANDSHAKE));
+		} else
+			handshakeCompleted(connection);
+	}
+
+	// Ripeto il login della sessione persa, prima di tutte le altre richieste, poi la connessione è pronta
+	private void handshakeCompleted(Connection connection) throws IOException {
+		if (connection.primary && authenticated) {
+			// La nuova sessione sul server non è autenticata finché non arriva la risposta al login
+			authenticated = false;
+			Call login = new Call(new Request(Protocol.LOGIN, username, password, null), ResponseType.CODE);
+			send(connection, login);
+		}
+		connection.state = State.READY;
+		connection.backoff = INITIAL_BACKOFF;
+		connection.failedAttempts = 0;
+		while (!connection.waiting.isEmpty())
+			send(connection, connection.waiting.poll());
+		if (connection.primary)
+			connected.complete(null);
+	}
+
+	// Sposto le richieste degli altri thread nella coda della connessione, inviandole se è pronta
+	private void takeSubmitted(Connection connection) {
+		Call call;
+		while ((call = connection.submitted.poll()) != null) {
+			if (connection.state != State.READY) {
+				if (unreachable(connection))
+					call.future.completeExceptionally(new IOException("Server non raggiungibile"));
+				else
+					connection.waiting.add(call);
+				continue;
+			}
+			try {
+				send(connection, call);
+			} catch (IOException e) {
+				disconnect(connection, e);
+			}
+		}
+	}
+
+	private void send(Connection connection, Call call) throws IOException {
+		ByteBuffer message;
+		if (call.type == ResponseType.HANDSHAKE)
+			message = Protocol.handshake(call.request.version, call.request.flags);
+		else if (connection.binary)
+			message = Protocol.encodeRequest(call.request);
+		else {
+			byte[] text = Protocol.encodeText(call.request).getBytes(StandardCharsets.UTF_8);
+			message = ByteBuffer.allocate(Integer.BYTES + text.length).putInt(text.length).put(text).flip();
+		}
+
+		if (connection.output.remaining() < message.remaining())
+			connection.output = grow(connection.output, connection.output.position() + message.remaining());
+		connection.output.put(message);
+		connection.inFlight.add(call);
+		flush(connection);
+	}
+
+	private void flush(Connection connection) throws IOException {
+		connection.output.flip();
+		connection.channel.write(connection.output);
+		boolean remaining = connection.output.hasRemaining();
+		connection.output.compact();
+		connection.key.interestOps(remaining ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+	}
+
+	// Leggo tutto quello che è disponibile e completo le richieste di cui è arrivata la risposta intera
+	private void read(Connection connection) throws IOException {
+		while (true) {
+			if (!connection.input.hasRemaining())
+				connection.input = grow(connection.input, connection.input.capacity() * 2);
+			int read = connection.channel.read(connection.input);
+			if (read == -1)
+				throw new IOException("Connessione chiusa dal server");
+			if (read == 0)
+				break;
+		}
+
+		connection.input.flip();
+		while (connection.input.remaining() >= Integer.BYTES) {
+			Call call = connection.inFlight.peek();
+			if (call == null)
+				throw new IOException("Risposta inattesa dal server");
+
+			int header = connection.input.getInt(connection.input.position());
+			// Con la versione 1 i codici di risposta sono un intero senza lunghezza
+			if (!connection.binary && call.type == ResponseType.CODE) {
+				connection.input.getInt();
+				connection.inFlight.poll();
+				completed(connection, call, header);
+				continue;
+			}
+
+			int length = Protocol.messageLength(header);
+			if (connection.input.remaining() < Integer.BYTES + length) {
+				// Risposta incompleta: mi assicuro che ci stia nel buffer e aspetto il resto
+				if (connection.input.capacity() < Integer.BYTES + length) {
+					ByteBuffer partial = connection.input.slice();
+					connection.input = ByteBuffer.allocate(Integer.BYTES + length);
+					connection.input.put(partial).flip();
+				}
+				break;
+			}
+
+			connection.input.getInt();
+			ByteBuffer message = connection.input.slice(connection.input.position(), length);
+			connection.input.position(connection.input.position() + length);
+			if (Protocol.isCompressed(header)) {
+				try {
+					message = Protocol.inflate(connection.inflater, message);
+				} catch (DataFormatException e) {
+					throw new IOException("Risposta compressa non valida", e);
+				}
+			} else {
+				// Copio il messaggio, perché il buffer di lettura viene riutilizzato
+				message = ByteBuffer.allocate(length).put(message).flip();
+			}
+			connection.inFlight.poll();
+			completed(connection, call, decode(connection, call, message));
+		}
+		connection.input.compact();
+	}
+
+	private Object decode(Connection connection, Call call, ByteBuffer message) {
+		switch (call.type) {
+			case HANDSHAKE:
+				return Protocol.isHandshake(message) ? Protocol.decodeHandshake(message) : null;
+			case CODE:
+				return (int) message.get();
+			case HOTEL:
+				if (connection.binary)
+					return Protocol.decodeHotel(message);
+				return message.hasRemaining() ? gson.fromJson(string(message), Hotel.class) : null;
+			case HOTELS: {
+				if (connection.binary)
+					return Protocol.decodeHotels(message);
+				List<Hotel> hotels = message.hasRemaining() ? gson.fromJson(string(message), HOTEL_LIST) : null;
+				return hotels == null ? Collections.emptyList() : hotels;
+			}
+			case BATCH:
+				return Protocol.decodeBatchResults(message);
+			default:
+				return string(message);
+		}
+	}
+
+	private void completed(Connection connection, Call call, Object response) throws IOException {
+		if (call.type == ResponseType.HANDSHAKE) {
+			Request accepted = (Request) response;
+			if (accepted == null)
+				throw new IOException("Handshake non valido");
+			// Le risposte compresse sono riconoscibili dalla lunghezza, quindi non serve ricordare se la compressione è stata accettata
+			connection.binary = accepted.version == Protocol.VERSION_BINARY;
+			handshakeCompleted(connection);
+			return;
+		}
+
+		if (call.request.opcode == Protocol.LOGIN)
+			sessionChanged(call.request, (Integer) response);
+		// Anche i login e logout contenuti in un batch cambiano la sessione
+		if (call.type == ResponseType.BATCH) {
+			List<?> results = (List<?>) response;
+			Request[] items = call.request.batch;
+			for (int i = 0; i < items.length && i < results.size(); i++) {
+				ByteBuffer result = (ByteBuffer) results.get(i);
+				if (items[i].opcode == Protocol.LOGIN && result.hasRemaining())
+					sessionChanged(items[i], connection.binary ? result.get(result.position()) : result.getInt(result.position()));
+			}
+		}
+		call.future.complete(response);
+	}
+
+	// Aggiorno lo stato della sessione dopo una richiesta di login o logout eseguita dal server. Il server effettua il logout
+	// se la sessione è già autenticata o se mancano le credenziali, altrimenti il login: lo stato precedente è quello
+	// delle risposte già ricevute, perché il server esegue le richieste di una connessione in ordine
+	private void sessionChanged(Request request, int code) {
+		if (code != 0)
+			return;
+		if (!authenticated && request.first != null) {
+			authenticated = true;
+			username = request.first;
+			password = request.second;
+		} else {
+			authenticated = false;
+			username = null;
+			password = null;
+		}
+	}
+
+	// Connessione persa: le richieste in corso falliscono, perché non so se il server le ha eseguite,
+	// mentre quelle non ancora inviate aspettano la riconnessione
+	private void disconnect(Connection connection, Exception cause) {
+		boolean wasReady = connection.state == State.READY;
+		if (connection.channel != null) {
+			try {
+				connection.channel.close();
+			} catch (IOException e) {}
+		}
+		connection.channel = null;
+		connection.key = null;
+		connection.state = State.DISCONNECTED;
+
+		IOException failure = new IOException("Connessione con il server persa", cause);
+		Call call;
+		while ((call = connection.inFlight.poll()) != null)
+			call.future.completeExceptionally(failure);
+
+		// Oltre maxReconnects tentativi falliti non faccio più attendere le richieste: continuo a riprovare per quelle future
+		if (!wasReady)
+			connection.failedAttempts++;
+		if (unreachable(connection)) {
+			while ((call = connection.waiting.poll()) != null)
+				call.future.completeExceptionally(new IOException("Server non raggiungibile dopo " + connection.failedAttempts + " tentativi", cause));
+		}
+
+		// Attesa crescente, con una parte casuale perché più client non si riconnettano tutti insieme
+		connection.reconnectAt = System.nanoTime() + connection.backoff + ThreadLocalRandom.current().nextLong(connection.backoff / 2 + 1);
+		connection.backoff = Math.min(connection.backoff * 2, MAX_BACKOFF);
+	}
+
+	// Chiusura del client: invio il messaggio di uscita sulle connessioni pronte e faccio fallire le richieste rimaste
+	private void shutdown() {
+		IOException failure = new IOException("Client chiuso");
+		for (Connection connection : connections) {
+			if (connection.state == State.READY) {
+				try {
+					ByteBuffer exit;
+					if (connection.binary)
+						exit = Protocol.encodeRequest(new Request(Protocol.EXIT, null, null, null));
+					else {
+						byte[] text = exitMessage.getBytes(StandardCharsets.UTF_8);
+						exit = ByteBuffer.allocate(Integer.BYTES + text.length).putInt(text.length).put(text).flip();
+					}
+					// Il messaggio va dopo le richieste non ancora scritte; non aspetto oltre se il server non le riceve
+					if (connection.output.remaining() < exit.remaining())
+						connection.output = grow(connection.output, connection.output.position() + exit.remaining());
+					connection.output.put(exit).flip();
+					for (int i = 0; i < 100 && connection.output.hasRemaining(); i++)
+						connection.channel.write(connection.output);
+				} catch (IOException | RuntimeException e) {}
+			}
+			if (connection.channel != null) {
+				try {
+					connection.channel.close();
+				} catch (IOException e) {}
+			}
+			connection.state = State.DISCONNECTED;
+
+			Call call;
+			while ((call = connection.inFlight.poll()) != null)
+				call.future.completeExceptionally(failure);
+			while ((call = connection.waiting.poll()) != null)
+				call.future.completeExceptionally(failure);
+			while ((call = connection.submitted.poll()) != null)
+				call.future.completeExceptionally(failure);
+			connection.inflater.end();
+		}
+		connected.completeExceptionally(failure);
+		try {
+			selector.close();
+		} catch (IOException e) {}
+	}
+
+	private boolean unreachable(Connection connection) {
+		return maxReconnects > 0 && connection.failedAttempts >= maxReconnects;
+	}
+
+	private static ByteBuffer grow(ByteBuffer buffer, int minCapacity) {
+		ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, minCapacity));
+		buffer.flip();
+		return grown.put(buffer);
+	}
+
+	private static String string(ByteBuffer message) {
+		return StandardCharsets.UTF_8.decode(message).toString();
+	}
+
+}
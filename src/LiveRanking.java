@@ -0,0 +1,101 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+// Ranking di ogni città sempre aggiornato: gli hotel sono ordinati per punteggio in una struttura ordinata,
+// e ad ogni recensione viene riposizionato solo l'hotel recensito in O(log n)
+public class LiveRanking {
+
+	// Chiave di ordinamento: punteggio decrescente, a parità di punteggio id crescente
+	private static class RankKey implements Comparable<RankKey> {
+		private final double score;
+		private final int hotelId;
+
+		private RankKey(double score, int hotelId) {
+			this.score = score;
+			this.hotelId = hotelId;
+		}
+
+		@Override
+		public int compareTo(RankKey other) {
+			int result = Double.compare(other.score, score);
+			if (result != 0)
+				return result;
+			return Integer.compare(hotelId, other.hotelId);
+		}
+	}
+
+	private static class CityRanking {
+		private final ConcurrentSkipListMap<RankKey, Hotel> ordered = new ConcurrentSkipListMap<RankKey, Hotel>();
+		// Chiave attuale di ogni hotel, per poterlo rimuovere quando cambia punteggio
+		private final Map<Integer, RankKey> keys = new ConcurrentHashMap<Integer, RankKey>();
+
+		private Hotel firstPlace() {
+			Map.Entry<RankKey, Hotel> first = ordered.firstEntry();
+			return first == null ? null : first.getValue();
+		}
+
+		private void put(Hotel hotel, long now) {
+			RankKey key = new RankKey(HotelComparator.calculateRanking(hotel, now), hotel.id());
+			RankKey oldKey = keys.put(hotel.id(), key);
+			if (oldKey != null)
+				ordered.remove(oldKey);
+			ordered.put(key, hotel);
+		}
+	}
+
+	private final Map<String, CityRanking> cities = new ConcurrentHashMap<String, CityRanking>();
+
+	// Ricalcola da zero il ranking della città con i punteggi attuali.
+	// Ritorna il nuovo primo classificato se è cambiato rispetto al precedente, altrimenti null
+	public Hotel rebuild(String city, List<Hotel> hotels) {
+		CityRanking ranking = cities.computeIfAbsent(city, c -> new CityRanking());
+
+		synchronized (ranking) {
+			Hotel oldFirstPlace = ranking.firstPlace();
+			ranking.ordered.clear();
+			ranking.keys.clear();
+
+			long now = System.currentTimeMillis();
+			for (Hotel hotel : hotels.toArray(new Hotel[0]))
+				ranking.put(hotel, now);
+
+			return changedFirstPlace(oldFirstPlace, ranking.firstPlace());
+		}
+	}
+
+	// Riposiziona l'hotel dopo che ha ricevuto una recensione.
+	// Ritorna il nuovo primo classificato se è cambiato, altrimenti null
+	public Hotel update(String city, Hotel hotel) {
+		CityRanking ranking = cities.computeIfAbsent(city, c -> new CityRanking());
+
+		// Rimozione, inserimento e controllo del primo posto atomici rispetto ad altre recensioni nella stessa città
+		synchronized (ranking) {
+			Hotel oldFirstPlace = ranking.firstPlace();
+			ranking.put(hotel, System.currentTimeMillis());
+			return changedFirstPlace(oldFirstPlace, ranking.firstPlace());
+		}
+	}
+
+	// Copia degli hotel della città nell'ordine attuale
+	public List<Hotel> snapshot(String city) {
+		CityRanking ranking = cities.get(city);
+		if (ranking == null)
+			return List.of();
+
+		// Durante il riposizionamento un hotel è momentaneamente assente, quindi copio in mutua esclusione
+		synchronized (ranking) {
+			return Collections.unmodifiableList(new ArrayList<Hotel>(ranking.ordered.values()));
+		}
+	}
+
+	private static Hotel changedFirstPlace(Hotel oldFirstPlace, Hotel newFirstPlace) {
+		if (oldFirstPlace == null || newFirstPlace == null || oldFirstPlace.id() == newFirstPlace.id())
+			return null;
+		return newFirstPlace;
+	}
+
+}
@@ -0,0 +1,216 @@
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Log asincrono a livelli per i percorsi di I/O del server.
+// Chi registra un evento scrive solo un record in un buffer circolare senza lock; un thread in background
+// formatta i record e li stampa a blocchi, così il selector non attende mai la console.
+// Se il livello dell'evento è disabilitato la chiamata si riduce ad un confronto, senza allocazioni.
+// Gli eventi più frequenti possono essere campionati: ne viene registrato uno ogni sampleRate
+public class Log {
+
+	public enum Level {
+		DEBUG, INFO, WARN, ERROR, OFF
+	}
+
+	// Tipo di messaggio, con il proprio livello e il proprio contatore per il campionamento
+	public static final class Event {
+		private final Level level;
+		private final String message;
+		private final boolean sampled;
+		private final AtomicLong occurrences = new AtomicLong();
+
+		private Event(Level level, String message, boolean sampled) {
+			this.level = level;
+			this.message = message;
+			this.sampled = sampled;
+		}
+	}
+
+	// Elemento del buffer circolare, riutilizzato per non allocare un record per messaggio
+	private static final class Slot {
+		private Event event;
+		private Object argument;
+	}
+
+	private static final long PARK_NANOS = 1_000_000; // Attesa del thread di stampa quando il buffer è vuoto
+	private static final int BATCH_SIZE = 256; // Record stampati con una sola scrittura
+
+	private static int threshold = Level.INFO.ordinal();
+	private static int sampleRate = 1;
+	private static PrintStream out = System.out;
+
+	// Buffer circolare con più produttori ed un solo consumatore: ogni posizione ha un numero di sequenza
+	// che indica se è libera per il produttore del giro corrente o pronta per il consumatore
+	private static Slot[] slots;
+	private static AtomicLongArray sequences;
+	private static int mask;
+	private static final AtomicLong tail = new AtomicLong(); // Prossima posizione da occupare
+	private static long head; // Prossima posizione da stampare, usata solo dal thread di stampa
+	private static final LongAdder dropped = new LongAdder(); // Record scartati a buffer pieno
+
+	private static Thread drainer;
+	private static volatile boolean running;
+
+	static {
+		allocate(8192);
+	}
+
+	public static Event event(Level level, String message) {
+		return new Event(level, message, false);
+	}
+
+	// Evento frequente, registrato una volta ogni sampleRate
+	public static Event sampledEvent(Level level, String message) {
+		return new Event(level, message, true);
+	}
+
+	// Da chiamare all'avvio, prima che altri thread registrino eventi
+	public static void configure(Level level, int rate, int bufferSize, PrintStream stream) {
+		threshold = level.ordinal();
+		sampleRate = Math.max(rate, 1);
+		out = stream;
+		allocate(bufferSize);
+
+		running = true;
+		drainer = new Thread(Log::drain, "log");
+		drainer.setDaemon(true);
+		drainer.start();
+	}
+
+	public static boolean isEnabled(Event event) {
+		return event.level.ordinal() >= threshold;
+	}
+
+	public static void log(Event event) {
+		log(event, null);
+	}
+
+	// L'argomento viene convertito in stringa dal thread di stampa, quindi non deve essere modificato dopo la chiamata
+	public static void log(Event event, Object argument) {
+		if (event.level.ordinal() < threshold)
+			return;
+		if (event.sampled && sampleRate > 1 && event.occurrences.getAndIncrement() % sampleRate != 0)
+			return;
+
+		long position;
+		int index;
+		while (true) {
+			position = tail.get();
+			index = (int) (position & mask);
+			long sequence = sequences.get(index);
+			if (sequence == position) {
+				if (tail.compareAndSet(position, position + 1))
+					break;
+			} else if (sequence < position) {
+				// Buffer pieno: scarto il record invece di bloccare il chiamante
+				dropped.increment();
+				return;
+			}
+			// Un altro produttore ha occupato la posizione, riprovo con la successiva
+		}
+
+		Slot slot = slots[index];
+		slot.event = event;
+		slot.argument = argument;
+		// Pubblico il record per il thread di stampa
+		sequences.set(index, position + 1);
+	}
+
+	// Numero di messaggi scartati a buffer pieno
+	public static long dropped() {
+		return dropped.sum();
+	}
+
+	// Ferma il thread di stampa dopo aver stampato tutti i record rimasti
+	public static void close() {
+		if (drainer == null)
+			return;
+		running = false;
+		LockSupport.unpark(drainer);
+		try {
+			drainer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void allocate(int bufferSize) {
+		int capacity = Integer.highestOneBit(Math.max(bufferSize - 1, 1)) << 1;
+		slots = new Slot[capacity];
+		sequences = new AtomicLongArray(capacity);
+		for (int i = 0; i < capacity; i++) {
+			slots[i] = new Slot();
+			sequences.set(i, i);
+		}
+		mask = capacity - 1;
+		tail.set(0);
+		head = 0;
+	}
+
+	private static void drain() {
+		StringBuilder batch = new StringBuilder();
+		long reportedDrops = 0;
+
+		while (true) {
+			boolean stopping = !running;
+			int count = 0;
+			while (count < BATCH_SIZE && poll(batch))
+				count++;
+
+			long drops = dropped.sum();
+			if (drops > reportedDrops) {
+				batch.append("[SERVER] Messaggi di log scartati a buffer pieno: ").append(drops - reportedDrops).append('\n');
+				reportedDrops = drops;
+			}
+
+			if (batch.length() > 0) {
+				out.print(batch);
+				out.flush();
+				batch.setLength(0);
+			}
+
+			// Stampo tutto quello che è rimasto prima di terminare
+			if (count == 0) {
+				if (stopping)
+					return;
+				LockSupport.parkNanos(PARK_NANOS);
+			}
+		}
+	}
+
+	// Formatta il prossimo record pubblicato, se c'è, e libera la sua posizione
+	private static boolean poll(StringBuilder batch) {
+		int index = (int) (head & mask);
+		if (sequences.get(index) != head + 1)
+			return false;
+
+		Slot slot = slots[index];
+		Event event = slot.event;
+		Object argument = slot.argument;
+		slot.event = null;
+		slot.argument = null;
+		sequences.set(index, head + mask + 1);
+		head++;
+
+		batch.append("[SERVER] ");
+		if (event.level.compareTo(Level.WARN) >= 0)
+			batch.append(event.level).append(' ');
+		batch.append(event.message);
+		if (argument instanceof Throwable) {
+			StringWriter trace = new StringWriter();
+			((Throwable) argument).printStackTrace(new PrintWriter(trace));
+			batch.append(trace);
+		} else {
+			if (argument != null)
+				batch.append(argument);
+			batch.append('\n');
+		}
+		return true;
+	}
+
+}
@@ -0,0 +1,171 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+// Registro delle metriche del server: contatori, valori letti al momento dello snapshot ed istogrammi delle latenze.
+// Le metriche vengono create una volta e mantenute dal chiamante, così registrarle non richiede ricerche nella mappa.
+// Contatori e istogrammi non usano lock, e possono essere aggiornati da tutti i thread insieme
+public class Metrics {
+
+	// Istogramma con intervalli logaritmici divisi linearmente, come HdrHistogram: ogni potenza di due è divisa
+	// in SUB_BUCKETS intervalli, quindi l'errore relativo di un percentile è al più 1/SUB_BUCKETS.
+	// I valori sono nanosecondi, ma può contenere qualsiasi valore non negativo
+	public static final class Histogram {
+		private static final int SUB_BUCKET_BITS = 5;
+		private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+		private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+		private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+		private final LongAdder sum = new LongAdder();
+		private final LongAccumulator max = new LongAccumulator(Long::max, 0);
+
+		public void record(long value) {
+			if (value < 0)
+				value = 0;
+			counts.incrementAndGet(index(value));
+			sum.add(value);
+			max.accumulate(value);
+		}
+
+		// Registra il tempo trascorso da start, ottenuto con System.nanoTime()
+		public void recordSince(long start) {
+			record(System.nanoTime() - start);
+		}
+
+		// Esegue l'operazione registrandone la durata
+		public void time(Runnable operation) {
+			long start = System.nanoTime();
+			try {
+				operation.run();
+			} finally {
+				recordSince(start);
+			}
+		}
+
+		// Numero di valori registrati
+		public long count() {
+			long total = 0;
+			for (int i = 0; i < BUCKETS; i++)
+				total += counts.get(i);
+			return total;
+		}
+
+		// Valore sotto il quale cade la frazione quantile dei valori registrati (es. 0.99), 0 se vuoto.
+		// È il massimo valore dell'intervallo che lo contiene, limitato al massimo registrato
+		public long percentile(double quantile) {
+			long[] snapshot = new long[BUCKETS];
+			long total = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				snapshot[i] = counts.get(i);
+				total += snapshot[i];
+			}
+			if (total == 0)
+				return 0;
+
+			long rank = Math.max(1, (long) Math.ceil(quantile * total));
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += snapshot[i];
+				if (seen >= rank)
+					return Math.min(highestValue(i), max.get());
+			}
+			return max.get();
+		}
+
+		public long max() {
+			return max.get();
+		}
+
+		public double mean() {
+			long count = count();
+			return count == 0 ? 0 : (double) sum.sum() / count;
+		}
+
+		// Somma un altro istogramma a questo, ad esempio per riunire quelli di più thread
+		public void add(Histogram other) {
+			for (int i = 0; i < BUCKETS; i++) {
+				long count = other.counts.get(i);
+				if (count > 0)
+					counts.addAndGet(i, count);
+			}
+			sum.add(other.sum.sum());
+			max.accumulate(other.max.get());
+		}
+
+		private static int index(long value) {
+			if (value < SUB_BUCKETS)
+				return (int) value;
+			int shift = (Long.SIZE - 1 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+			return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+		}
+
+		private static long highestValue(int index) {
+			if (index < SUB_BUCKETS)
+				return index;
+			int shift = index / SUB_BUCKETS - 1;
+			long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+			return lowest + (1L << shift) - 1;
+		}
+	}
+
+	private static final long startTime = System.currentTimeMillis();
+	private static final Map<String, LongAdder> counters = new ConcurrentHashMap<String, LongAdder>();
+	private static final Map<String, LongSupplier> gauges = new ConcurrentHashMap<String, LongSupplier>();
+	private static final Map<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+
+	public static LongAdder counter(String name) {
+		return counters.computeIfAbsent(name, n -> new LongAdder());
+	}
+
+	public static Histogram histogram(String name) {
+		return histograms.computeIfAbsent(name, n -> new Histogram());
+	}
+
+	// Valore letto solo quando viene fatto uno snapshot, ad esempio la dimensione di una struttura
+	public static void gauge(String name, LongSupplier supplier) {
+		gauges.put(name, supplier);
+	}
+
+	// Stato attuale di tutte le metriche, ordinate per nome. Le latenze sono in microsecondi
+	public static Map<String, Object> snapshot() {
+		Map<String, Object> snapshot = new LinkedHashMap<String, Object>();
+		snapshot.put("timestamp", System.currentTimeMillis());
+		snapshot.put("uptimeMs", System.currentTimeMillis() - startTime);
+
+		Map<String, Long> counterValues = new TreeMap<String, Long>();
+		counters.forEach((name, counter) -> counterValues.put(name, counter.sum()));
+		snapshot.put("counters", counterValues);
+
+		Map<String, Long> gaugeValues = new TreeMap<String, Long>();
+		gauges.forEach((name, gauge) -> gaugeValues.put(name, gauge.getAsLong()));
+		snapshot.put("gauges", gaugeValues);
+
+		Map<String, Map<String, Object>> histogramValues = new TreeMap<String, Map<String, Object>>();
+		histograms.forEach((name, histogram) -> {
+			long count = histogram.count();
+			if (count == 0)
+				return;
+			Map<String, Object> values = new LinkedHashMap<String, Object>();
+			values.put("count", count);
+			values.put("meanUs", micros(histogram.mean()));
+			values.put("p50Us", micros(histogram.percentile(0.5)));
+			values.put("p99Us", micros(histogram.percentile(0.99)));
+			values.put("p999Us", micros(histogram.percentile(0.999)));
+			values.put("maxUs", micros(histogram.max()));
+			histogramValues.put(name, values);
+		});
+		snapshot.put("histograms", histogramValues);
+		return snapshot;
+	}
+
+	// Microsecondi con un decimale
+	private static double micros(double nanos) {
+		return Math.round(nanos / 100) / 10.0;
+	}
+
+}
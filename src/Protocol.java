@@ -0,0 +1,440 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+// Codifica e decodifica dei messaggi tra client e server, usata sia da ServerMain che da ClientMain.
+// Ogni messaggio è preceduto dalla sua lunghezza in byte (un intero).
+// Versione 1, testuale: richieste "codice;arg1;arg2..." e risposte con un intero oppure con una stringa preceduta dalla sua lunghezza.
+// Versione 2, binaria: il client la sceglie inviando come primo messaggio un handshake (MAGIC, versione e opzioni),
+// a cui il server risponde con la versione e le opzioni accettate. Le richieste sono un byte con il codice seguito da campi
+// tipizzati (stringhe UTF-8 precedute dalla lunghezza, valutazioni da un byte), e ogni risposta è un messaggio a sé.
+// Con l'opzione FLAG_COMPRESSION dell'handshake (valida con entrambe le versioni) il server può comprimere le risposte
+// più lunghe: la lunghezza ha il bit più alto impostato e il messaggio è la lunghezza originale seguita dai dati compressi.
+// Un batch contiene più richieste, righe successive alla prima ("7") con la versione 1, richieste complete di lunghezza
+// precedute dal loro numero con la versione 2. La risposta è un unico messaggio: il numero dei risultati seguito da ognuno
+// di essi preceduto dalla sua lunghezza (il codice di risposta come intero con la versione 1, vuoto per richieste sconosciute)
+public class Protocol {
+
+	// Una richiesta testuale non inizia mai con un byte nullo, quindi l'handshake non può essere confuso con essa
+	public static final int MAGIC = 0x00484F54; // "\0HOT"
+	public static final int HANDSHAKE_LENGTH = Integer.BYTES + 2;
+
+	public static final int VERSION_TEXT = 1;
+	public static final int VERSION_BINARY = 2;
+
+	// Opzioni dell'handshake
+	public static final int FLAG_COMPRESSION = 1;
+	// Bit della lunghezza che indica un messaggio compresso
+	public static final int COMPRESSED = 0x80000000;
+
+	// Codici delle richieste
+	public static final int UNKNOWN = -2; // Codice sconosciuto o richiesta malformata
+	public static final int HANDSHAKE = -1;
+	public static final int EXIT = 0;
+	public static final int REGISTER = 1;
+	public static final int LOGIN = 2; // Oppure logout, se il client è già autenticato
+	public static final int SEARCH_HOTEL = 3;
+	public static final int SEARCH_ALL_HOTELS = 4;
+	public static final int INSERT_REVIEW = 5;
+	public static final int SHOW_BADGE = 6;
+	public static final int BATCH = 7;
+	public static final int METRICS = 8; // Snapshot delle metriche del server, in JSON
+
+	// Numero massimo di richieste in un batch della versione 2
+	public static final int MAX_BATCH = 0xFFFF;
+
+	public static final int RATES = 5; // Valutazioni di una recensione
+
+	// Lunghezza che indica una stringa null; le stringhe delle richieste sono quindi lunghe al più 65534 byte
+	private static final int NULL_STRING = 0xFFFF;
+	// I campi degli hotel nelle risposte hanno una lunghezza su 4 byte (-1 per null), perché i dati caricati dai file
+	// non hanno limiti di lunghezza: una risposta non deve mai fallire durante la codifica
+	private static final int NULL_LONG_STRING = -1;
+	private static final long NO_DATE = Long.MIN_VALUE;
+
+	// Messaggio di handshake, usato sia per la richiesta del client che per la risposta del server
+	public static ByteBuffer handshake(int version, int flags) {
+		ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + HANDSHAKE_LENGTH);
+		buffer.putInt(HANDSHAKE_LENGTH).putInt(MAGIC).put((byte) version).put((byte) flags);
+		return buffer.flip();
+	}
+
+	// True se il messaggio (senza la lunghezza) è un handshake
+	public static boolean isHandshake(ByteBuffer message) {
+		return message.remaining() == HANDSHAKE_LENGTH && message.getInt(message.position()) == MAGIC;
+	}
+
+	public static Request decodeHandshake(ByteBuffer message) {
+		message.getInt();
+		return Request.handshake(message.get() & 0xFF, message.get() & 0xFF);
+	}
+
+	public static boolean isCompressed(int length) {
+		return (length & COMPRESSED) != 0;
+	}
+
+	// Lunghezza del messaggio senza il bit di compressione
+	public static int messageLength(int length) {
+		return length & ~COMPRESSED;
+	}
+
+	// Decomprime un messaggio compresso (senza la lunghezza), riutilizzando l'Inflater della connessione
+	public static ByteBuffer inflate(Inflater inflater, ByteBuffer message) throws DataFormatException {
+		ByteBuffer output = ByteBuffer.allocate(message.getInt());
+		inflater.reset();
+		inflater.setInput(message);
+		while (output.hasRemaining() && !inflater.finished()) {
+			if (inflater.inflate(output) == 0 && inflater.needsInput())
+				throw new DataFormatException("Messaggio compresso troncato");
+		}
+		return output.flip();
+	}
+
+	// Richiesta della versione 1, nella forma "codice;arg1;arg2..."
+	public static Request parseText(String text, String exitMessage) {
+		if (text.equalsIgnoreCase(exitMessage))
+			return new Request(EXIT, null, null, null);
+
+		// Batch: una richiesta per riga dopo il codice
+		int newLine = text.indexOf('\n');
+		if (newLine >= 0 && text.substring(0, newLine).trim().equals(Integer.toString(BATCH))) {
+			String[] lines = text.substring(newLine + 1).split("\n");
+			Request[] requests = new Request[lines.length];
+			for (int i = 0; i < lines.length; i++)
+				requests[i] = batchItem(parseText(lines[i], exitMessage));
+			return Request.batch(requests);
+		}
+
+		String[] parameters = text.split(";");
+		int opcode;
+		try {
+			opcode = Integer.parseInt(parameters[0]);
+		} catch (NumberFormatException e) {
+			return new Request(UNKNOWN, null, null, null);
+		}
+		if (opcode == BATCH && parameters.length == 1)
+			return Request.batch(); // Batch senza richieste
+		// Uscita e handshake sono codici interni: con la versione 1 l'uscita è solo exitMessage, e il batch va seguito dalle sue righe
+		if (opcode < REGISTER || opcode > METRICS || opcode == BATCH)
+			return new Request(UNKNOWN, null, null, null);
+
+		String first = parameters.length > 1 ? parameters[1] : null;
+		String second = parameters.length > 2 ? parameters[2] : null;
+		int[] rates = null;
+		if (opcode == INSERT_REVIEW && parameters.length >= 3 + RATES) {
+			try {
+				rates = new int[RATES];
+				for (int i = 0; i < RATES; i++)
+					rates[i] = Integer.parseInt(parameters[3 + i]);
+			} catch (NumberFormatException e) {
+				rates = null;
+			}
+		}
+		return new Request(opcode, first, second, rates);
+	}
+
+	// Richiesta nella forma della versione 1, "codice;arg1;arg2..."
+	public static String encodeText(Request request) {
+		if (request.opcode == BATCH) {
+			StringBuilder builder = new StringBuilder().append(BATCH);
+			for (Request item : request.batch)
+				builder.append('\n').append(encodeText(item));
+			return builder.toString();
+		}
+
+		StringBuilder builder = new StringBuilder().append(request.opcode);
+		if (request.first != null)
+			builder.append(';').append(request.first);
+		if (request.second != null)
+			builder.append(';').append(request.second);
+		if (request.rates != null) {
+			for (int rate : request.rates)
+				builder.append(';').append(rate);
+		}
+		return builder.toString();
+	}
+
+	public static ByteBuffer encodeRequest(Request request) {
+		if (request.opcode == BATCH)
+			return encodeBatch(request.batch);
+		return encodeRequest(request.opcode, request.first, request.second, request.rates);
+	}
+
+	// Batch della versione 2: il numero di richieste seguito dalle richieste complete di lunghezza
+	public static ByteBuffer encodeBatch(Request[] requests) {
+		if (requests.length > MAX_BATCH)
+			throw new IllegalArgumentException("Troppe richieste nel batch: " + requests.length);
+
+		ByteBuffer[] encoded = new ByteBuffer[requests.length];
+		int length = 1 + Short.BYTES;
+		for (int i = 0; i < requests.length; i++) {
+			encoded[i] = encodeRequest(requests[i]);
+			length += encoded[i].remaining();
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + length);
+		buffer.putInt(length).put((byte) BATCH).putShort((short) requests.length);
+		for (ByteBuffer request : encoded)
+			buffer.put(request);
+		return buffer.flip();
+	}
+
+	// Risultati di un batch, nell'ordine delle richieste. Ogni risultato è il contenuto della risposta alla singola richiesta
+	public static List<ByteBuffer> decodeBatchResults(ByteBuffer message) {
+		int count = message.getInt();
+		List<ByteBuffer> results = new ArrayList<ByteBuffer>(count);
+		for (int i = 0; i < count; i++) {
+			int length = message.getInt();
+			results.add(message.slice(message.position(), length));
+			message.position(message.position() + length);
+		}
+		return results;
+	}
+
+	// Richiesta della versione 2, già preceduta dalla sua lunghezza e pronta per essere scritta
+	public static ByteBuffer encodeRequest(int opcode, String first, String second, int[] rates) {
+		// I campi non usati dal codice non vengono inviati
+		boolean sendFirst = first != null || second != null;
+		boolean sendSecond = second != null;
+		byte[] firstBytes = encodeString(first);
+		byte[] secondBytes = encodeString(second);
+		int length = 1 + (sendFirst ? stringSize(firstBytes) : 0) + (sendSecond ? stringSize(secondBytes) : 0) + (rates == null ? 0 : rates.length);
+
+		ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + length);
+		buffer.putInt(length).put((byte) opcode);
+		if (sendFirst)
+			putString(buffer, firstBytes);
+		if (sendSecond)
+			putString(buffer, secondBytes);
+		if (rates != null) {
+			for (int rate : rates)
+				buffer.put((byte) rate);
+		}
+		return buffer.flip();
+	}
+
+	// Richiesta della versione 2 (senza la lunghezza)
+	public static Request decodeRequest(ByteBuffer message) {
+		try {
+			int opcode = message.get();
+			String first = null, second = null;
+			int[] rates = null;
+
+			switch (opcode) {
+				case REGISTER:
+				case LOGIN:
+				case SEARCH_HOTEL:
+					// Il logout non ha parametri
+					if (message.hasRemaining()) {
+						first = getString(message);
+						second = getString(message);
+					}
+				break;
+				case SEARCH_ALL_HOTELS:
+					first = getString(message);
+				break;
+				case INSERT_REVIEW:
+					first = getString(message);
+					second = getString(message);
+					rates = new int[RATES];
+					for (int i = 0; i < RATES; i++)
+						rates[i] = message.get();
+				break;
+				case SHOW_BADGE:
+				case METRICS:
+				case EXIT:
+				break;
+				case BATCH: {
+					Request[] requests = new Request[message.getShort() & 0xFFFF];
+					for (int i = 0; i < requests.length; i++) {
+						int length = message.getInt();
+						if (length < 0 || length > message.remaining())
+							throw new BufferUnderflowException();
+						requests[i] = batchItem(decodeRequest(message.slice(message.position(), length)));
+						message.position(message.position() + length);
+					}
+					return Request.batch(requests);
+				}
+				default:
+					opcode = UNKNOWN;
+			}
+			return new Request(opcode, first, second, rates);
+		} catch (BufferUnderflowException | IllegalArgumentException e) {
+			return new Request(UNKNOWN, null, null, null);
+		}
+	}
+
+	// Nome del codice di richiesta, usato per le metriche
+	public static String opcodeName(int opcode) {
+		switch (opcode) {
+			case HANDSHAKE: return "handshake";
+			case EXIT: return "exit";
+			case REGISTER: return "register";
+			case LOGIN: return "login";
+			case SEARCH_HOTEL: return "searchHotel";
+			case SEARCH_ALL_HOTELS: return "searchAllHotels";
+			case INSERT_REVIEW: return "insertReview";
+			case SHOW_BADGE: return "showBadge";
+			case BATCH: return "batch";
+			case METRICS: return "metrics";
+			default: return "unknown";
+		}
+	}
+
+	// Un batch può contenere solo le richieste ordinarie, non uscite, handshake o altri batch
+	private static Request batchItem(Request request) {
+		if (request.opcode < REGISTER || request.opcode > SHOW_BADGE)
+			return new Request(UNKNOWN, null, null, null);
+		return request;
+	}
+
+	// Codifica di un singolo hotel, vuota se l'hotel non esiste
+	public static byte[] encodeHotel(Hotel hotel) {
+		if (hotel == null)
+			return new byte[0];
+		return encode(out -> writeHotel(out, hotel));
+	}
+
+	// Codifica di una lista di hotel: il numero di hotel seguito dagli hotel
+	public static byte[] encodeHotels(List<Hotel> hotels) {
+		return encode(out -> {
+			out.writeInt(hotels.size());
+			for (Hotel hotel : hotels)
+				writeHotel(out, hotel);
+		});
+	}
+
+	// Hotel contenuto nella risposta, oppure null se la risposta è vuota
+	public static Hotel decodeHotel(ByteBuffer message) {
+		if (!message.hasRemaining())
+			return null;
+		return readHotel(message);
+	}
+
+	public static List<Hotel> decodeHotels(ByteBuffer message) {
+		int count = message.getInt();
+		List<Hotel> hotels = new ArrayList<Hotel>(count);
+		for (int i = 0; i < count; i++)
+			hotels.add(readHotel(message));
+		return hotels;
+	}
+
+	public static String getString(ByteBuffer buffer) {
+		int length = buffer.getShort() & 0xFFFF;
+		if (length == NULL_STRING)
+			return null;
+		if (length > buffer.remaining())
+			throw new BufferUnderflowException();
+
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private interface Encoder {
+		void writeTo(DataOutputStream out) throws IOException;
+	}
+
+	private static byte[] encode(Encoder encoder) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			encoder.writeTo(out);
+		} catch (IOException e) {
+			// Non succede scrivendo in memoria
+			throw new UncheckedIOException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static void writeHotel(DataOutputStream out, Hotel hotel) throws IOException {
+		out.writeInt(hotel.id());
+		writeLongString(out, hotel.name);
+		writeLongString(out, hotel.description);
+		writeLongString(out, hotel.city);
+		writeLongString(out, hotel.phone);
+		String[] services = hotel.services == null ? new String[0] : hotel.services;
+		out.writeInt(services.length);
+		for (String service : services)
+			writeLongString(out, service);
+		out.writeFloat(hotel.rate);
+		out.writeFloat(hotel.getCleaningRate());
+		out.writeFloat(hotel.getPositionRate());
+		out.writeFloat(hotel.getServicesRate());
+		out.writeFloat(hotel.getQualityRate());
+		out.writeInt(hotel.reviews());
+		Date avgReviewDate = hotel.getAvgReviewDate();
+		out.writeLong(avgReviewDate == null ? NO_DATE : avgReviewDate.getTime());
+	}
+
+	private static Hotel readHotel(ByteBuffer buffer) {
+		int id = buffer.getInt();
+		String name = getLongString(buffer);
+		String description = getLongString(buffer);
+		String city = getLongString(buffer);
+		String phone = getLongString(buffer);
+		int serviceCount = buffer.getInt();
+		if (serviceCount < 0 || serviceCount > buffer.remaining() / Integer.BYTES)
+			throw new BufferUnderflowException();
+		String[] services = new String[serviceCount];
+		for (int i = 0; i < services.length; i++)
+			services[i] = getLongString(buffer);
+		float rate = buffer.getFloat();
+		Rating ratings = new Rating(buffer.getFloat(), buffer.getFloat(), buffer.getFloat(), buffer.getFloat());
+		int reviews = buffer.getInt();
+		long avgReviewDate = buffer.getLong();
+		return new Hotel(id, name, description, city, phone, services, rate, ratings, reviews, avgReviewDate == NO_DATE ? null : new Date(avgReviewDate));
+	}
+
+	private static void writeLongString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(NULL_LONG_STRING);
+			return;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String getLongString(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		if (length == NULL_LONG_STRING)
+			return null;
+		if (length < 0 || length > buffer.remaining())
+			throw new BufferUnderflowException();
+
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static void putString(ByteBuffer buffer, byte[] bytes) {
+		if (bytes == null) {
+			buffer.putShort((short) NULL_STRING);
+			return;
+		}
+		buffer.putShort((short) bytes.length).put(bytes);
+	}
+
+	private static byte[] encodeString(String value) {
+		if (value == null)
+			return null;
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		if (bytes.length >= NULL_STRING)
+			throw new IllegalArgumentException("Stringa troppo lunga: " + bytes.length + " byte");
+		return bytes;
+	}
+
+	private static int stringSize(byte[] bytes) {
+		return Short.BYTES + (bytes == null ? 0 : bytes.length);
+	}
+
+}
@@ -0,0 +1,47 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+// Risposte già serializzate dei ranking di ogni città, associate alla versione del ranking da cui sono state create.
+// La versione viene incrementata quando cambia il ranking o un hotel della città, e solo allora la risposta viene ricostruita
+public class RankingCache {
+
+	private static class Payload {
+		private final long version;
+		private final byte[] bytes;
+
+		private Payload(long version, byte[] bytes) {
+			this.version = version;
+			this.bytes = bytes;
+		}
+	}
+
+	private final Map<String, AtomicLong> versions = new ConcurrentHashMap<String, AtomicLong>();
+	private final Map<String, Payload> payloads = new ConcurrentHashMap<String, Payload>();
+
+	// Il ranking della città è cambiato: la risposta salvata non è più valida
+	public void invalidate(String city) {
+		versions.computeIfAbsent(city, c -> new AtomicLong()).incrementAndGet();
+	}
+
+	public long version(String city) {
+		AtomicLong version = versions.get(city);
+		return version == null ? 0 : version.get();
+	}
+
+	// Risposta per la città alla versione corrente, costruita con builder solo se quella salvata è vecchia
+	public byte[] get(String city, Supplier<byte[]> builder) {
+		// Leggo la versione prima di costruire la risposta: se nel frattempo cambia,
+		// la risposta viene salvata con la versione vecchia e ricostruita alla prossima richiesta
+		long version = version(city);
+		Payload payload = payloads.get(city);
+		if (payload != null && payload.version == version)
+			return payload.bytes;
+
+		byte[] bytes = builder.get();
+		payloads.put(city, new Payload(version, bytes));
+		return bytes;
+	}
+
+}
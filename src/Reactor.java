@@ -0,0 +1,151 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Thread di I/O con un proprio Selector: gestisce letture e scritture delle connessioni che gli vengono assegnate
+public class Reactor implements Runnable {
+
+	private static final Log.Event SELECT_FAILED = Log.event(Log.Level.ERROR, "Reactor terminato per un errore del selector: ");
+	private static final Log.Event IO_ERROR = Log.event(Log.Level.WARN, "Errore di I/O: ");
+	private static final Log.Event CONNECTION_FAILED = Log.event(Log.Level.ERROR, "Errore nella gestione di una connessione, la chiudo: ");
+	// Iterazioni del ciclo di select di tutti i reactor
+	private static final LongAdder iterations = Metrics.counter("reactor.iterations");
+
+	private final Selector selector;
+	private final int bufferSize;
+	private final int maxMessageSize;
+	private final BufferPool bufferPool;
+
+	// Connessioni accettate da un altro thread, da registrare su questo selector
+	private final Queue<SocketChannel> newConnections = new ConcurrentLinkedQueue<SocketChannel>();
+	// Connessioni per cui un worker ha preparato una risposta, da abilitare in scrittura
+	private final Queue<SelectionKey> completedKeys = new ConcurrentLinkedQueue<SelectionKey>();
+	// Numero di connessioni aperte, usato per il bilanciamento del carico
+	private final AtomicInteger connections = new AtomicInteger();
+	// ReadState riutilizzabili delle connessioni chiuse, usati solo dal thread del reactor
+	private final Deque<ReadState> statePool = new ArrayDeque<ReadState>();
+
+	public Reactor(Selector selector, int bufferSize, int maxMessageSize, BufferPool bufferPool) {
+		this.selector = selector;
+		this.bufferSize = bufferSize;
+		this.maxMessageSize = maxMessageSize;
+		this.bufferPool = bufferPool;
+	}
+
+	public Selector selector() {
+		return selector;
+	}
+
+	public int connections() {
+		return connections.get();
+	}
+
+	// Assegna una nuova connessione a questo reactor, può essere chiamato da qualsiasi thread
+	public void addConnection(SocketChannel client) {
+		connections.incrementAndGet();
+		newConnections.add(client);
+		// Anche se chiamato dal reactor stesso, così la prossima select non si blocca
+		selector.wakeup();
+	}
+
+	// Chiamato da un worker quando ha preparato una risposta per la connessione
+	public void complete(SelectionKey key) {
+		completedKeys.add(key);
+		selector.wakeup();
+	}
+
+	// Chiude la connessione e recupera il suo ReadState
+	public void closeConnection(SelectionKey key) {
+		ReadState state = (ReadState) key.attachment();
+		try {
+			key.channel().close(); // Cancella anche la chiave.
+		} catch (IOException e) {
+		}
+		connections.decrementAndGet();
+
+		// Se un worker sta ancora usando lo stato non posso riutilizzarlo
+		if (state != null && state.clear())
+			statePool.push(state);
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			try {
+				selector.select();
+			} catch (IOException e) {
+				Log.log(SELECT_FAILED, e);
+				return;
+			}
+
+			// Registro le connessioni assegnate a questo reactor
+			SocketChannel client;
+			while ((client = newConnections.poll()) != null) {
+				ReadState state = statePool.isEmpty() ? new ReadState(bufferSize, maxMessageSize, this, bufferPool) : statePool.pop();
+				try {
+					state.local = ((InetSocketAddress) client.getRemoteAddress()).getAddress().isLoopbackAddress();
+					// Mi preparo a leggere dal client
+					client.register(selector, SelectionKey.OP_READ, state);
+				} catch (IOException e) {
+					// Connessione già chiusa dal client
+					connections.decrementAndGet();
+				}
+			}
+
+			// Abilito la scrittura sulle connessioni per cui i worker hanno preparato una risposta,
+			// e chiudo quelle su cui una richiesta è fallita
+			SelectionKey completedKey;
+			while ((completedKey = completedKeys.poll()) != null) {
+				if (!completedKey.isValid())
+					continue;
+				if (((ReadState) completedKey.attachment()).failed)
+					closeConnection(completedKey);
+				else
+					completedKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			}
+
+			iterations.increment();
+			long allocatedBefore = ServerMain.allocatedBytes();
+			Iterator<SelectionKey> readyKeys = selector.selectedKeys().iterator();
+
+			while (readyKeys.hasNext()) {
+				SelectionKey key = readyKeys.next();
+				readyKeys.remove();
+
+				try {
+					if (key.isAcceptable())
+						ServerMain.handleAccept(key);
+
+					else {
+						if (key.isReadable())
+							ServerMain.handleRead(this, key);
+
+						if (key.isValid() && key.isWritable())
+							ServerMain.handleWrite(this, key);
+					}
+				} catch (IOException e) {
+					// Errore su una singola connessione, non deve fermare il reactor
+					Log.log(IO_ERROR, e.getMessage());
+					if (key.channel() instanceof SocketChannel && key.channel().isOpen())
+						closeConnection(key);
+				} catch (RuntimeException e) {
+					// Anche un errore imprevisto (ad esempio in una richiesta gestita senza worker) chiude solo questa connessione
+					Log.log(CONNECTION_FAILED, e);
+					if (key.channel() instanceof SocketChannel && key.channel().isOpen())
+						closeConnection(key);
+				}
+			}
+			ServerMain.recordAllocations(allocatedBefore);
+		}
+	}
+
+}
@@ -1,25 +1,198 @@
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.Deflater;
 
 public class ReadState {
-	
-	public int count; // Numero totale di byte letti.
-	public int length; // Dimensione del messaggio da ricevere.
-	public ByteBuffer buffer; // Buffer per memorizzare il messaggio e la sua lunghezza.
+
+	public ByteBuffer buffer; // Buffer in cui si accumulano i byte letti, messaggi preceduti dalla loro lunghezza.
+	private int readPosition; // Inizio del primo messaggio non ancora estratto dal buffer.
 	private int defaultBufSize; // Dimensione buffer per messaggi di lunghezza variabile.
+	private final int maxMessageSize; // Lunghezza massima di un messaggio, oltre la quale la connessione viene chiusa.
 	public int userId; // Tengo traccia dell'autenticazione.
-	
-	public ReadState(int bufSize) {
-		this.count = 0;
-		this.length = 0;
-		this.buffer = ByteBuffer.allocate(bufSize);
+	public int protocolVersion; // Versione del protocollo scelta dal client con il primo messaggio, 0 se non ancora nota.
+	public boolean compression; // Il client ha chiesto la compressione delle risposte e il server l'ha accettata.
+	public boolean local; // Il client è connesso da un indirizzo di loopback.
+	public final Reactor reactor; // Reactor che gestisce la connessione.
+	private final BufferPool pool; // Pool da cui prendo in prestito i buffer.
+	private byte[] messageBytes; // Appoggio riutilizzabile per decodificare i messaggi da un buffer diretto.
+	private Deflater deflater; // Contesto di compressione, creato alla prima risposta compressa e riutilizzato dalle connessioni successive.
+
+	// Risposte pronte da scrivere sul client, nell'ordine in cui sono arrivate le richieste.
+	public final Queue<ByteBuffer> responses = new ConcurrentLinkedQueue<ByteBuffer>();
+	// Richieste in attesa di essere elaborate da un worker, in ordine di arrivo.
+	private final Queue<Request> pendingRequests = new ArrayDeque<Request>();
+	// Al più un worker alla volta elabora le richieste di questa connessione.
+	private boolean processing;
+	// La connessione è stata chiusa mentre un worker la serviva: sarà il worker a restituire i buffer al pool quando termina.
+	private boolean closed;
+	// Una richiesta è fallita su un worker: il reactor deve chiudere la connessione.
+	public volatile boolean failed;
+
+	public ReadState(int bufSize, int maxMessageSize, Reactor reactor, BufferPool pool) {
+		this.pool = pool;
+		this.maxMessageSize = maxMessageSize;
+		this.buffer = pool.acquire(bufSize);
+		this.readPosition = 0;
+		this.messageBytes = new byte[bufSize];
 		defaultBufSize = bufSize;
 		userId = 0;
+		protocolVersion = 0;
+		compression = false;
+		this.reactor = reactor;
+		processing = false;
+		closed = false;
+		failed = false;
 	}
-	
+
 	public void reset() {
-		count = 0;
-		length = 0;
-		buffer = ByteBuffer.allocate(defaultBufSize);
+		readPosition = 0;
+
+		// Riutilizzo il buffer se ha già la dimensione iniziale, altrimenti lo restituisco al pool
+		if (buffer.capacity() == pool.acquireSize(defaultBufSize)) {
+			buffer.clear();
+			return;
+		}
+		pool.release(buffer);
+		buffer = pool.acquire(defaultBufSize);
+	}
+
+	// Estrae il prossimo messaggio completo ricevuto (senza la lunghezza), oppure null se non è ancora arrivato tutto.
+	// Il messaggio è una vista sul buffer, valida fino alla prossima chiamata a compact().
+	// Lancia IOException se la lunghezza dichiarata non è valida o supera maxMessageSize, prima di allocare qualsiasi buffer
+	public ByteBuffer nextMessage() throws IOException {
+		int available = buffer.position() - readPosition;
+
+		// Devo ancora leggere la lunghezza del messaggio
+		if (available < Integer.BYTES)
+			return null;
+
+		int length = buffer.getInt(readPosition);
+		if (length < 0 || length > maxMessageSize)
+			throw new IOException("Lunghezza del messaggio non valida: " + length);
+
+		// Non ho ancora letto tutto il messaggio
+		if (available < Integer.BYTES + length)
+			return null;
+
+		ByteBuffer message = buffer.slice(readPosition + Integer.BYTES, length);
+		readPosition += Integer.BYTES + length;
+		return message;
+	}
+
+	// Decodifica un messaggio testuale, copiandolo sull'array di appoggio (ingrandito se serve)
+	public String text(ByteBuffer message) {
+		int length = message.remaining();
+		if (messageBytes.length < length)
+			messageBytes = new byte[Math.max(length, messageBytes.length * 2)];
+		message.get(messageBytes, 0, length);
+		return new String(messageBytes, 0, length, StandardCharsets.UTF_8);
+	}
+
+	// Comprime input in output a partire dalla sua posizione. Ritorna false se il risultato non entra in output,
+	// cioè se la compressione non riduce abbastanza il messaggio.
+	// Usato da un solo thread alla volta, perché le richieste di una connessione sono elaborate in ordine
+	public boolean deflate(ByteBuffer input, ByteBuffer output, int level) {
+		if (deflater == null)
+			deflater = new Deflater(level);
+		deflater.reset();
+		deflater.setInput(input);
+		deflater.finish();
+		while (!deflater.finished()) {
+			if (!output.hasRemaining())
+				return false;
+			deflater.deflate(output);
+		}
+		return true;
 	}
-	
+
+	// Scarta i messaggi già estratti, mantenendo i dati parziali, e fa spazio per la prossima lettura.
+	// Se il messaggio in arrivo non entra nel buffer, lo ingrandisce quanto basta per contenerlo.
+	// Va chiamato dopo nextMessage, che ha già verificato la lunghezza del messaggio
+	public void compact() {
+		// Tutti i messaggi sono stati estratti: se il buffer era stato ingrandito torno alla dimensione iniziale
+		if (readPosition == buffer.position() && buffer.capacity() > pool.acquireSize(defaultBufSize)) {
+			reset();
+			return;
+		}
+
+		if (readPosition > 0) {
+			buffer.flip();
+			buffer.position(readPosition);
+			buffer.compact();
+			readPosition = 0;
+		}
+
+		if (!buffer.hasRemaining()) {
+			// Il buffer pieno contiene almeno la lunghezza del messaggio: lo porto alla dimensione del messaggio intero,
+			// che non supera maxMessageSize, raddoppiandolo solo se è più piccolo
+			int needed = Integer.BYTES + buffer.getInt(0);
+			int doubled = (int) Math.min((long) buffer.capacity() * 2, Integer.BYTES + (long) maxMessageSize);
+			ByteBuffer larger = pool.acquire(Math.max(needed, doubled));
+			buffer.flip();
+			larger.put(buffer);
+			pool.release(buffer);
+			buffer = larger;
+		}
+	}
+
+	// Prepara lo stato per essere riutilizzato da una nuova connessione.
+	// Ritorna false se un worker lo sta ancora usando, e quindi non può essere riutilizzato
+	public synchronized boolean clear() {
+		if (processing) {
+			// Il worker termina dopo la richiesta in corso e rilascia i buffer
+			closed = true;
+			pendingRequests.clear();
+			return false;
+		}
+		reset();
+		userId = 0;
+		protocolVersion = 0;
+		compression = false;
+		failed = false;
+		releaseResponses();
+		pendingRequests.clear();
+		if (messageBytes.length > defaultBufSize)
+			messageBytes = new byte[defaultBufSize];
+		return true;
+	}
+
+	// Accoda una richiesta. Ritorna true se il chiamante deve avviare un worker per elaborarla
+	public synchronized boolean enqueueRequest(Request request) {
+		pendingRequests.add(request);
+		if (processing)
+			return false;
+		processing = true;
+		return true;
+	}
+
+	// Prossima richiesta da elaborare, oppure null se la coda è vuota (e il worker deve terminare).
+	// Se la connessione è stata chiusa nel frattempo, il worker restituisce al pool i buffer rimasti
+	public synchronized Request nextRequest() {
+		Request request = pendingRequests.poll();
+		if (request == null) {
+			processing = false;
+			if (closed) {
+				releaseResponses();
+				pool.release(buffer);
+			}
+		}
+		return request;
+	}
+
+	// Una richiesta è fallita: scarto le successive, perché le loro risposte non sarebbero più associate alle richieste giuste
+	public synchronized void fail() {
+		failed = true;
+		pendingRequests.clear();
+	}
+
+	private void releaseResponses() {
+		ByteBuffer response;
+		while ((response = responses.poll()) != null)
+			pool.release(response);
+	}
+
 }
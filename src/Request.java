@@ -0,0 +1,61 @@
+// Richiesta di un client già decodificata, indipendente dalla versione del protocollo con cui è arrivata
+public class Request {
+
+	public final int opcode;
+	// Parametri testuali nell'ordine del protocollo: username e password, oppure nome dell'hotel e città, oppure solo la città.
+	// Un parametro non inviato dal client è null
+	public final String first;
+	public final String second;
+	// Valutazioni della recensione: generale, pulizia, posizione, servizi e prezzo. Null se mancanti o non valide
+	public final int[] rates;
+	// Solo per l'handshake: versione e opzioni richieste dal client
+	public final int version;
+	public final int flags;
+	// Solo per il batch: le richieste da eseguire in ordine
+	public final Request[] batch;
+
+	private static final String PASSWORD_MASK = "****";
+
+	public Request(int opcode, String first, String second, int[] rates) {
+		this(opcode, first, second, rates, Protocol.VERSION_TEXT, 0, null);
+	}
+
+	private Request(int opcode, String first, String second, int[] rates, int version, int flags, Request[] batch) {
+		this.opcode = opcode;
+		this.first = first;
+		this.second = second;
+		this.rates = rates;
+		this.version = version;
+		this.flags = flags;
+		this.batch = batch;
+	}
+
+	public static Request handshake(int version, int flags) {
+		return new Request(Protocol.HANDSHAKE, null, null, null, version, flags, null);
+	}
+
+	public static Request batch(Request... requests) {
+		return new Request(Protocol.BATCH, null, null, null, Protocol.VERSION_TEXT, 0, requests);
+	}
+
+	// Forma testuale della richiesta, per i messaggi di log, con le password nascoste
+	@Override
+	public String toString() {
+		if (opcode == Protocol.HANDSHAKE)
+			return "handshake v" + version;
+		return Protocol.encodeText(masked());
+	}
+
+	private Request masked() {
+		if ((opcode == Protocol.REGISTER || opcode == Protocol.LOGIN) && second != null)
+			return new Request(opcode, first, PASSWORD_MASK, rates);
+		if (opcode == Protocol.BATCH) {
+			Request[] requests = new Request[batch.length];
+			for (int i = 0; i < batch.length; i++)
+				requests[i] = batch[i].masked();
+			return batch(requests);
+		}
+		return this;
+	}
+
+}
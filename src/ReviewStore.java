@@ -0,0 +1,207 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.Date;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+
+// Archivio delle recensioni in colonne di array primitivi, invece di un oggetto Review (con Rating e Date) per recensione.
+// Ogni recensione occupa 25 byte: id di utente e hotel, un byte per valutazione, il giorno (come nel file JSON)
+// e due riferimenti alla recensione precedente dello stesso hotel e dello stesso utente, per scorrerle senza indici a parte.
+// Le colonne sono divise in blocchi di dimensione fissa, aggiunti man mano, così crescere non richiede di copiare i dati.
+// Le aggiunte sono in mutua esclusione, le letture possono avvenire in parallelo alle aggiunte
+public class ReviewStore {
+
+	private static final int CHUNK_BITS = 16;
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+	private static final int NONE = -1;
+
+	private static class Chunk {
+		private final int[] userIds = new int[CHUNK_SIZE];
+		private final int[] hotelIds = new int[CHUNK_SIZE];
+		private final byte[] rates = new byte[CHUNK_SIZE];
+		private final byte[] cleaning = new byte[CHUNK_SIZE];
+		private final byte[] position = new byte[CHUNK_SIZE];
+		private final byte[] services = new byte[CHUNK_SIZE];
+		private final byte[] quality = new byte[CHUNK_SIZE];
+		private final int[] epochDays = new int[CHUNK_SIZE];
+		private final int[] previousByHotel = new int[CHUNK_SIZE];
+		private final int[] previousByUser = new int[CHUNK_SIZE];
+	}
+
+	// Le date del file JSON sono giorni nel fuso orario locale
+	private static final ZoneId ZONE = ZoneId.systemDefault();
+
+	// Scritti dopo i dati della recensione: chi legge size vede anche tutte le recensioni precedenti
+	private volatile Chunk[] chunks = new Chunk[16];
+	private volatile int size;
+	// Ultima recensione inserita per ogni hotel e per ogni utente
+	private final Map<Integer, Integer> lastByHotel = new ConcurrentHashMap<Integer, Integer>();
+	private final Map<Integer, Integer> lastByUser = new ConcurrentHashMap<Integer, Integer>();
+
+	public int size() {
+		return size;
+	}
+
+	// Aggiunge la recensione e ne ritorna l'indice
+	public int add(Review review) {
+		return add(review.getUserId(), review.getHotelId(), toByte(review.getRate()), toByte(review.getCleaningRate()), toByte(review.getPositionRate()),
+				toByte(review.getServicesRate()), toByte(review.getQualityRate()), toEpochDay(review.getDate()));
+	}
+
+	public synchronized int add(int userId, int hotelId, byte rate, byte cleaningRate, byte positionRate, byte servicesRate, byte qualityRate, int epochDay) {
+		int index = size;
+		Chunk chunk = chunkFor(index);
+		int offset = index & CHUNK_MASK;
+
+		chunk.userIds[offset] = userId;
+		chunk.hotelIds[offset] = hotelId;
+		chunk.rates[offset] = rate;
+		chunk.cleaning[offset] = cleaningRate;
+		chunk.position[offset] = positionRate;
+		chunk.services[offset] = servicesRate;
+		chunk.quality[offset] = qualityRate;
+		chunk.epochDays[offset] = epochDay;
+		chunk.previousByHotel[offset] = lastByHotel.getOrDefault(hotelId, NONE);
+		chunk.previousByUser[offset] = lastByUser.getOrDefault(userId, NONE);
+
+		// Pubblico la recensione solo dopo averla scritta tutta
+		lastByHotel.put(hotelId, index);
+		lastByUser.put(userId, index);
+		size = index + 1;
+		return index;
+	}
+
+	public synchronized void clear() {
+		chunks = new Chunk[16];
+		size = 0;
+		lastByHotel.clear();
+		lastByUser.clear();
+	}
+
+	public int userId(int index) {
+		return chunk(index).userIds[index & CHUNK_MASK];
+	}
+
+	public int hotelId(int index) {
+		return chunk(index).hotelIds[index & CHUNK_MASK];
+	}
+
+	public byte rate(int index) {
+		return chunk(index).rates[index & CHUNK_MASK];
+	}
+
+	public byte cleaningRate(int index) {
+		return chunk(index).cleaning[index & CHUNK_MASK];
+	}
+
+	public byte positionRate(int index) {
+		return chunk(index).position[index & CHUNK_MASK];
+	}
+
+	public byte servicesRate(int index) {
+		return chunk(index).services[index & CHUNK_MASK];
+	}
+
+	public byte qualityRate(int index) {
+		return chunk(index).quality[index & CHUNK_MASK];
+	}
+
+	public int epochDay(int index) {
+		return chunk(index).epochDays[index & CHUNK_MASK];
+	}
+
+	// Ricostruisce la recensione come oggetto, ad esempio per serializzarla
+	public Review get(int index) {
+		Chunk chunk = chunk(index);
+		int offset = index & CHUNK_MASK;
+		Rating ratings = new Rating(chunk.cleaning[offset], chunk.position[offset], chunk.services[offset], chunk.quality[offset]);
+		return new Review(chunk.userIds[offset], chunk.hotelIds[offset], chunk.rates[offset], ratings, toDate(chunk.epochDays[offset]));
+	}
+
+	// Indici delle recensioni dell'hotel, dalla più recente
+	public PrimitiveIterator.OfInt byHotel(int hotelId) {
+		return new ChainIterator(lastByHotel.getOrDefault(hotelId, NONE), true);
+	}
+
+	// Indici delle recensioni dell'utente, dalla più recente
+	public PrimitiveIterator.OfInt byUser(int userId) {
+		return new ChainIterator(lastByUser.getOrDefault(userId, NONE), false);
+	}
+
+	// Scrive le prime count recensioni come array JSON, con la stessa struttura del file Reviews.json.
+	// Le recensioni vengono ricostruite una alla volta, senza creare un array con tutte quante
+	public void writeJson(Gson gson, Writer writer, int count) throws IOException {
+		JsonWriter jsonWriter = gson.newJsonWriter(writer);
+		jsonWriter.beginArray();
+		for (int i = 0; i < count; i++)
+			gson.toJson(get(i), Review.class, jsonWriter);
+		jsonWriter.endArray();
+		jsonWriter.flush();
+	}
+
+	public static byte toByte(float rating) {
+		return (byte) Math.round(rating);
+	}
+
+	public static int toEpochDay(Date date) {
+		return (int) date.toInstant().atZone(ZONE).toLocalDate().toEpochDay();
+	}
+
+	public static Date toDate(int epochDay) {
+		return Date.from(LocalDate.ofEpochDay(epochDay).atStartOfDay(ZONE).toInstant());
+	}
+
+	private Chunk chunk(int index) {
+		return chunks[index >>> CHUNK_BITS];
+	}
+
+	// Blocco che contiene l'indice, creato se non esiste. Chiamato mentre si possiede il lock
+	private Chunk chunkFor(int index) {
+		int chunkIndex = index >>> CHUNK_BITS;
+		Chunk[] current = chunks;
+		if (chunkIndex == current.length) {
+			Chunk[] grown = new Chunk[current.length * 2];
+			System.arraycopy(current, 0, grown, 0, current.length);
+			current = grown;
+			chunks = current;
+		}
+		if (current[chunkIndex] == null)
+			current[chunkIndex] = new Chunk();
+		return current[chunkIndex];
+	}
+
+	private class ChainIterator implements PrimitiveIterator.OfInt {
+		private int next;
+		private final boolean byHotel;
+
+		private ChainIterator(int first, boolean byHotel) {
+			this.next = first;
+			this.byHotel = byHotel;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next != NONE;
+		}
+
+		@Override
+		public int nextInt() {
+			if (next == NONE)
+				throw new NoSuchElementException();
+			int current = next;
+			Chunk chunk = chunk(current);
+			int offset = current & CHUNK_MASK;
+			next = byHotel ? chunk.previousByHotel[offset] : chunk.previousByUser[offset];
+			return current;
+		}
+	}
+
+}
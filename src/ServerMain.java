@@ -1,7 +1,12 @@
+import java.io.BufferedWriter;
 import java.io.FileInputStream;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
 import java.net.BindException;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
@@ -9,11 +14,24 @@ import java.net.InetSocketAddress;
 import java.net.MulticastSocket;
 import java.net.SocketException;
 import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
@@ -21,14 +39,36 @@ import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import com.sun.management.ThreadMXBean;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
 public class ServerMain {
 
-	private static final Gson gson = new GsonBuilder().setPrettyPrinting().setDateFormat("dd-MM-yyyy").create();
+	// JSON delle risposte ai client e dei file su disco, compatti a meno che non sia richiesto il pretty printing per debug
+	private static Gson wireGson;
+	private static Gson diskGson;
+	// Sempre senza pretty printing, per avere un record per riga nel log
+	private static final Gson logGson = createGson(false);
 	private static final String configFile = "server.config";
 
 	private static int PORT;
@@ -40,52 +80,203 @@ public class ServerMain {
 	private static String multicastAddress;
 	private static int multicastPort;
 	private static int autosaveRate;
+	private static int rankingRefreshRate;
+	private static boolean liveRankings;
+	private static int rankingParallelism;
+	private static String persistence;
+	private static String walFile;
+	private static WriteAheadLog.Fsync walFsync;
+	private static int snapshotRate;
+	private static boolean binarySnapshot;
+	private static String binarySnapshotFile;
+	private static int workerThreads;
+	private static String workerType;
+	private static int workerQueueSize;
+	private static boolean bufferPoolEnabled;
+	private static int bufferPoolSize;
+	private static boolean allocationStats;
+	private static int reactorThreads;
+	private static String reactorBalancing;
+	private static boolean compression;
+	private static int compressionThreshold;
+	private static int compressionLevel;
+	private static Log.Level logLevel;
+	private static int logSampleRate;
+	private static int logBufferSize;
+	private static String metricsFile;
+	private static int metricsDumpRate;
+	private static String metricsAccess;
+	private static int maxMessageSize;
 
 	private static List<Hotel> hotels;
 	private static List<User> users;
-	private static List<Review> reviews;
+	private static final ReviewStore reviews = new ReviewStore();
 
 	// Thread safe, in vista di un possibile threadpool
 	private static final Set<String> cities = ConcurrentHashMap.newKeySet();
-	private static final Map<String, List<Hotel>> rankings = new ConcurrentHashMap<String, List<Hotel>>();
+	// Sostituita per intero quando vengono ricalcolati tutti i ranking
+	private static volatile Map<String, List<Hotel>> rankings = new ConcurrentHashMap<String, List<Hotel>>();
+	// Hotel di ogni città, per calcolarne il ranking senza scorrere tutta la lista
+	private static final Map<String, List<Hotel>> hotelsByCity = new ConcurrentHashMap<String, List<Hotel>>();
+	// Città con nuove recensioni, il cui ranking va ricalcolato
+	private static final Set<String> dirtyCities = ConcurrentHashMap.newKeySet();
+	// Indice degli hotel per nome e città, per trovarli senza scorrere tutta la lista
+	private static final Map<String, Hotel> hotelsByNameAndCity = new ConcurrentHashMap<String, Hotel>();
+	// Indice degli hotel per id
+	private static final Map<Integer, Hotel> hotelsById = new ConcurrentHashMap<Integer, Hotel>();
+	// Indici degli utenti per username e per id
+	private static final Map<String, User> usersByName = new ConcurrentHashMap<String, User>();
+	private static final Map<Integer, User> usersById = new ConcurrentHashMap<Integer, User>();
 
 	private static MulticastSocket notificationSocket;
 	private static InetAddress multicastGroup;
 
 	private static final HotelComparator comparator = new HotelComparator();
 
+	// Pool per il ricalcolo parallelo dei ranking delle città (null se rankingParallelism è 1)
+	private static ForkJoinPool rankingPool;
+
+	// Ranking aggiornati ad ogni recensione, usati al posto di quelli periodici se liveRankings è abilitato
+	private static final LiveRanking liveRanking = new LiveRanking();
+
+	// Risposte serializzate dei ranking per città (in JSON e con la codifica binaria), ricostruite solo quando cambiano
+	private static final RankingCache rankingCache = new RankingCache();
+	private static final RankingCache binaryRankingCache = new RankingCache();
+	private static final byte[] EMPTY_RESPONSE = new byte[0];
+	// Lista di hotel vuota con la codifica binaria: solo il numero di hotel
+	private static final byte[] EMPTY_HOTELS = new byte[Integer.BYTES];
+
 	private static boolean autoSaverRunning = true;
 
-	public static void main(String[] args) {
+	// Le scritture su hotel, utenti e recensioni avvengono in mutua esclusione, così uno snapshot ne vede uno stato coerente
+	private static final Object dataLock = new Object();
+	private static final Object snapshotLock = new Object();
+	// Log delle scritture, se persistence è "wal" (altrimenti null e i file JSON vengono riscritti ad ogni operazione)
+	private static WriteAheadLog wal;
+	// Se persistence è "periodic", le operazioni segnano solo quali file sono da riscrivere, e l'autosaver
+	// li salva al più una volta ogni autosaveRate
+	private static boolean periodicPersistence;
+	private static final AtomicBoolean hotelsDirty = new AtomicBoolean();
+	private static final AtomicBoolean usersDirty = new AtomicBoolean();
+	private static final AtomicBoolean reviewsDirty = new AtomicBoolean();
+
+	// Pool di worker a cui il selector delega l'elaborazione delle richieste (null se disabilitato)
+	private static ThreadPoolExecutor workerPool;
+
+	// Buffer diretti riutilizzati per le richieste e le risposte
+	private static BufferPool bufferPool;
+	// Encoder per le risposte testuali, uno per thread poiché non sono thread safe
+	private static final ThreadLocal<CharsetEncoder> encoders = ThreadLocal.withInitial(() -> StandardCharsets.UTF_8.newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE));
+
+	// Misura dei byte allocati per richiesta, per valutare la pressione sul garbage collector
+	private static final ThreadMXBean threadBean = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+	private static final LongAdder allocatedBytes = Metrics.counter("allocatedBytes");
+	private static final LongAdder handledRequests = Metrics.counter("requests");
+
+	// Eventi di log dei percorsi di I/O: quelli ad ogni lettura, scrittura e richiesta sono campionati
+	private static final Log.Event CONNECTION_ACCEPTED = Log.event(Log.Level.INFO, "Nuova connessione ricevuta");
+	private static final Log.Event CLIENT_DISCONNECTED = Log.event(Log.Level.INFO, "Client disconnesso");
+	private static final Log.Event CLIENT_RESET = Log.event(Log.Level.WARN, "Client disconnesso in maniera anomala");
+	private static final Log.Event CLIENT_READ = Log.sampledEvent(Log.Level.DEBUG, "Lettura da client");
+	private static final Log.Event CLIENT_WRITE = Log.sampledEvent(Log.Level.DEBUG, "Scrittura su client");
+	private static final Log.Event REQUEST_RECEIVED = Log.sampledEvent(Log.Level.DEBUG, "Richiesta ricevuta: ");
+	private static final Log.Event REQUEST_FAILED = Log.event(Log.Level.ERROR, "Errore nell'elaborazione della richiesta: ");
+	private static final Log.Event NOTIFICATION_SENT = Log.event(Log.Level.DEBUG, "Notifica inviata");
+	private static final Log.Event METRICS_DUMP_FAILED = Log.event(Log.Level.WARN, "Errore nella scrittura delle metriche: ");
+
+	// True mentre il thread esegue le richieste di un batch: le scritture vengono solo segnate e salvate alla fine
+	private static final ThreadLocal<Boolean> inBatch = ThreadLocal.withInitial(() -> false);
+
+	// Byte delle risposte compresse, prima e dopo la compressione
+	private static final LongAdder uncompressedBytes = Metrics.counter("compression.bytesBefore");
+	private static final LongAdder compressedBytes = Metrics.counter("compression.bytesAfter");
+
+	// Metriche dei percorsi interni: byte letti e scritti, durata delle risposte per codice di richiesta,
+	// della persistenza e del calcolo dei ranking
+	private static final LongAdder bytesIn = Metrics.counter("bytesIn");
+	private static final LongAdder bytesOut = Metrics.counter("bytesOut");
+	private static final Metrics.Histogram[] responseTimes = new Metrics.Histogram[Protocol.METRICS - Protocol.UNKNOWN + 1];
+	private static final Metrics.Histogram persistTimes = Metrics.histogram("persistence.write");
+	private static final Metrics.Histogram commitTimes = Metrics.histogram("persistence.commit");
+	private static final Metrics.Histogram snapshotTimes = Metrics.histogram("persistence.snapshot");
+	private static final Metrics.Histogram dirtyFilesTimes = Metrics.histogram("persistence.dirtyFiles");
+	private static final Metrics.Histogram rankingTimes = Metrics.histogram("rankings.update");
+	private static final Metrics.Histogram dirtyRankingTimes = Metrics.histogram("rankings.updateDirty");
+
+	static {
+		for (int opcode = Protocol.UNKNOWN; opcode <= Protocol.METRICS; opcode++)
+			responseTimes[opcode - Protocol.UNKNOWN] = Metrics.histogram("response." + Protocol.opcodeName(opcode));
+	}
 
-		loadConfig();
-		// Carico i dati dai file JSON
-		hotels = new Vector<Hotel>( Arrays.asList( jsonToObjectArray(hotelsFile, Hotel[].class ) ) );
-		users = new Vector<User>( Arrays.asList( jsonToObjectArray(usersFile, User[].class ) ) );
-		reviews = new Vector<Review>( Arrays.asList( jsonToObjectArray(reviewsFile, Review[].class ) ) );
+	// Reactor tra cui vengono distribuite le nuove connessioni
+	private static Reactor[] reactors;
+	private static int nextReactor = 0;
 
-		// Carico il nome delle città capoluogo, per poter fare un ranking per ognuna di esse
-		// In lowercase per gestire le richieste in maniera case insensitive
-		for (Hotel hotel : hotels)
-			cities.add(hotel.city.toLowerCase());
+	public static void main(String[] args) {
 
-		// Calcolo i ranking iniziali
-		updateRankings();
+		configure();
+		// Carico i dati dai file JSON, costruendo gli indici durante la lettura
+		loadData();
+
+		periodicPersistence = persistence.equalsIgnoreCase("periodic");
+
+		// Riapplico le operazioni registrate sul log dopo l'ultimo snapshot
+		if (persistence.equalsIgnoreCase("wal")) {
+			wal = new WriteAheadLog(walFile, walFsync);
+			try {
+				long replayed = wal.recover(ServerMain::replayRecord);
+				System.out.println("[SERVER] Operazioni recuperate dal log: " + replayed);
+			} catch (IOException e) {
+				System.out.println("Errore nella lettura del log '" + walFile + "'");
+				System.exit(2);
+			}
+		}
 
 		// Sincronizzo l'incremento progressivo degli id con quelli del file JSON
-		if (!users.isEmpty())
-			User.PROGRESSIVE_ID = users.get(users.size() - 1).getId() + 1;
+		for (User user : users)
+			User.PROGRESSIVE_ID.accumulateAndGet(user.getId() + 1, Math::max);
+
+		// Calcolo i ranking iniziali
+		if (rankingParallelism > 1)
+			rankingPool = new ForkJoinPool(rankingParallelism);
+		rankingTimes.time(ServerMain::updateRankings);
 
 		// Aggiornamenti periodici
 		Thread autoSaver = new Thread(new Runnable() {
 			@Override
 			public void run() {
+				long lastFullUpdate = System.currentTimeMillis();
+				long lastSnapshot = System.currentTimeMillis();
 				while (autoSaverRunning) {
 					try {
 						Thread.sleep(autosaveRate);
-						updateRankings();
-						// Eventuali salvataggi su JSON
-						// In questo caso gestiti ad ogni operazione
+
+						// Ricalcolo solo i ranking delle città che hanno ricevuto recensioni
+						dirtyRankingTimes.time(ServerMain::updateDirtyRankings);
+
+						// Periodicamente ricalcolo tutti i ranking, perché l'attualità delle recensioni
+						// cambia con il passare del tempo anche senza nuove recensioni
+						if (System.currentTimeMillis() - lastFullUpdate >= rankingRefreshRate) {
+							rankingTimes.time(ServerMain::updateRankings);
+							lastFullUpdate = System.currentTimeMillis();
+						}
+
+						// Con il log attivo le operazioni vengono salvate sul log,
+						// e periodicamente su file JSON con uno snapshot completo
+						if (wal != null) {
+							wal.sync();
+							if (System.currentTimeMillis() - lastSnapshot >= snapshotRate) {
+								snapshotTimes.time(ServerMain::saveSnapshot);
+								lastSnapshot = System.currentTimeMillis();
+							}
+						}
+						// In modalità periodica salvo i file modificati dall'ultimo salvataggio
+						if (periodicPersistence)
+							dirtyFilesTimes.time(ServerMain::saveDirtyFiles);
+						// Altrimenti i salvataggi su JSON sono gestiti ad ogni operazione
+					} catch (IOException e) {
+						e.printStackTrace();
 					} catch (InterruptedException e) {
 					}
 				}
@@ -93,21 +284,42 @@ public class ServerMain {
 		});
 		autoSaver.start();
 
+		registerGauges();
+		if (metricsDumpRate > 0)
+			startMetricsDump();
+
+		// Se richiesto, il selector si occupa solo di I/O e delega le richieste ai worker
+		if (workerThreads > 0)
+			workerPool = createWorkerPool();
+
 		// Salvataggio finale prima di chiudere il server, per garantire consistenza
 		Runtime.getRuntime().addShutdownHook(new Thread() {
 			public void run() {
 				System.out.println("[SERVER] Terminazione server...");
-
-				// In questo caso inutile poiché garantisco la persistenza ad ogni operazione
-				objectArrayToJson(hotels.toArray(), hotelsFile);
-				objectArrayToJson(users.toArray(), usersFile);
-				objectArrayToJson(reviews.toArray(), reviewsFile);
+				printAllocationStats();
+				printCompressionStats();
 
 				try {
 					autoSaverRunning = false;
 					autoSaver.join();
+					if (workerPool != null) {
+						workerPool.shutdown();
+						workerPool.awaitTermination(autosaveRate, TimeUnit.MILLISECONDS);
+					}
 				} catch (InterruptedException e) {
 				}
+
+				// Inutile se garantisco la persistenza ad ogni operazione, necessario con il log
+				snapshotTimes.time(ServerMain::saveSnapshot);
+				if (wal != null) {
+					try {
+						wal.close();
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+				// Stampo i messaggi di log ancora in sospeso
+				Log.close();
 			}
 		});
 
@@ -125,6 +337,23 @@ public class ServerMain {
 			notificationSocket = new MulticastSocket();
 			multicastGroup = InetAddress.getByName(multicastAddress);
 
+			// Con un solo reactor il thread principale gestisce sia le connessioni che l'I/O sullo stesso selector
+			reactors = new Reactor[Math.max(reactorThreads, 1)];
+			if (reactors.length == 1) {
+				reactors[0] = new Reactor(selector, bufferSize, maxMessageSize, bufferPool);
+				reactors[0].run();
+				return;
+			}
+
+			// Altrimenti ogni reactor ha il suo thread e il suo selector,
+			// mentre il thread principale accetta le connessioni e le distribuisce
+			for (int i = 0; i < reactors.length; i++) {
+				reactors[i] = new Reactor(Selector.open(), bufferSize, maxMessageSize, bufferPool);
+				Thread reactorThread = new Thread(reactors[i], "reactor-" + i);
+				reactorThread.setDaemon(true);
+				reactorThread.start();
+			}
+
 			while (true) {
 				selector.select();
 
@@ -135,13 +364,7 @@ public class ServerMain {
 					readyKeys.remove();
 
 					if (key.isAcceptable())
-						handleAccept(selector, key);
-
-					else if (key.isReadable())
-						handleRead(selector, key);
-
-					else if (key.isWritable())
-						handleWrite(selector, key);
+						handleAccept(key);
 				}
 			}
 
@@ -155,6 +378,21 @@ public class ServerMain {
 
 	}
 
+	// Gson con il formato delle date dei file JSON, usato per file, log e risposte
+	static Gson createGson(boolean prettyPrinting) {
+		GsonBuilder builder = new GsonBuilder().setDateFormat("dd-MM-yyyy");
+		if (prettyPrinting)
+			builder.setPrettyPrinting();
+		return builder.create();
+	}
+
+	// Carica la configurazione e prepara log e pool di buffer. Usato anche dai benchmark in bench/
+	static void configure() {
+		loadConfig();
+		Log.configure(logLevel, logSampleRate, logBufferSize, System.out);
+		bufferPool = new BufferPool(bufferPoolEnabled, bufferPoolSize);
+	}
+
 	// Caricamento configurazioni dal file apposito
 	private static void loadConfig() {
 		Properties props = new Properties();
@@ -169,227 +407,934 @@ public class ServerMain {
 			multicastAddress = props.getProperty("multicastAddress");
 			multicastPort = Integer.parseInt(props.getProperty("multicastPort"));
 			autosaveRate = Integer.parseInt(props.getProperty("autosaveRate"));
+			rankingRefreshRate = Integer.parseInt(props.getProperty("rankingRefreshRate", "3600000"));
+			liveRankings = Boolean.parseBoolean(props.getProperty("liveRankings", "false"));
+			rankingParallelism = Integer.parseInt(props.getProperty("rankingParallelism", "1"));
+			persistence = props.getProperty("persistence", "sync");
+			walFile = props.getProperty("walFile", "Hotelier.wal");
+			walFsync = WriteAheadLog.Fsync.valueOf(props.getProperty("walFsync", "always").toUpperCase());
+			snapshotRate = Integer.parseInt(props.getProperty("snapshotRate", "60000"));
+			wireGson = createGson(Boolean.parseBoolean(props.getProperty("prettyResponses", "false")));
+			diskGson = createGson(Boolean.parseBoolean(props.getProperty("prettyFiles", "false")));
+			binarySnapshot = Boolean.parseBoolean(props.getProperty("binarySnapshot", "false"));
+			binarySnapshotFile = props.getProperty("binarySnapshotFile", "Hotelier.snapshot");
+			workerThreads = Integer.parseInt(props.getProperty("workerThreads", "0"));
+			workerType = props.getProperty("workerType", "platform");
+			workerQueueSize = Integer.parseInt(props.getProperty("workerQueueSize", "1024"));
+			bufferPoolEnabled = Boolean.parseBoolean(props.getProperty("bufferPool", "true"));
+			bufferPoolSize = Integer.parseInt(props.getProperty("bufferPoolSize", "256"));
+			allocationStats = Boolean.parseBoolean(props.getProperty("allocationStats", "false"));
+			reactorThreads = Integer.parseInt(props.getProperty("reactorThreads", "1"));
+			reactorBalancing = props.getProperty("reactorBalancing", "roundrobin");
+			compression = Boolean.parseBoolean(props.getProperty("compression", "true"));
+			compressionThreshold = Integer.parseInt(props.getProperty("compressionThreshold", "1024"));
+			compressionLevel = Integer.parseInt(props.getProperty("compressionLevel", "1"));
+			logLevel = Log.Level.valueOf(props.getProperty("logLevel", "info").toUpperCase());
+			logSampleRate = Integer.parseInt(props.getProperty("logSampleRate", "1"));
+			logBufferSize = Integer.parseInt(props.getProperty("logBufferSize", "8192"));
+			metricsFile = props.getProperty("metricsFile", "metrics.jsonl");
+			metricsDumpRate = Integer.parseInt(props.getProperty("metricsDumpRate", "0"));
+			metricsAccess = props.getProperty("metricsAccess", "local");
+			maxMessageSize = Integer.parseInt(props.getProperty("maxMessageSize", "16777216"));
 		} catch (IOException e) {
 			System.out.println("Errore nella lettura del file di configurazione");
 			System.exit(1);
 		}
 	}
 
-	// Parsing da file JSON a oggetti Java
-	private static <T> T[] jsonToObjectArray(String fileName, Class<T[]> elementType) {
-		try (FileReader reader = new FileReader(fileName)) {
-			return gson.fromJson(reader, elementType);
+	// Byte allocati finora dal thread corrente, se la misura delle allocazioni è abilitata
+	static long allocatedBytes() {
+		return allocationStats ? threadBean.getCurrentThreadAllocatedBytes() : 0;
+	}
+
+	// Aggiunge al totale i byte allocati dal thread corrente a partire da allocatedBefore
+	static void recordAllocations(long allocatedBefore) {
+		if (allocationStats)
+			allocatedBytes.add(threadBean.getCurrentThreadAllocatedBytes() - allocatedBefore);
+	}
+
+	// Riepilogo delle allocazioni per richiesta e dell'attività del garbage collector,
+	// da confrontare tra un'esecuzione con bufferPool=true ed una con bufferPool=false
+	private static void printAllocationStats() {
+		if (!allocationStats)
+			return;
+
+		long requests = handledRequests.sum();
+		long gcCount = 0, gcTime = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			gcCount += Math.max(gc.getCollectionCount(), 0);
+			gcTime += Math.max(gc.getCollectionTime(), 0);
+		}
+
+		System.out.println("[SERVER] Richieste: " + requests
+				+ ", byte allocati per richiesta: " + (requests == 0 ? 0 : allocatedBytes.sum() / requests)
+				+ ", pool buffer (hit/miss): " + bufferPool.hits() + "/" + bufferPool.misses()
+				+ ", GC: " + gcCount + " raccolte in " + gcTime + " ms");
+	}
+
+	// Byte delle risposte compresse prima e dopo la compressione, se qualche client l'ha richiesta
+	private static void printCompressionStats() {
+		long before = uncompressedBytes.sum();
+		if (before == 0)
+			return;
+
+		long after = compressedBytes.sum();
+		System.out.println("[SERVER] Risposte compresse: " + before + " byte prima, " + after + " byte dopo la compressione ("
+				+ (100 * after / before) + "%)");
+	}
+
+	// Metriche lette al momento dello snapshot: connessioni aperte, dati caricati, buffer e log
+	private static void registerGauges() {
+		Metrics.gauge("connections", () -> {
+			Reactor[] current = reactors;
+			long connections = 0;
+			if (current != null) {
+				for (Reactor reactor : current) {
+					if (reactor != null)
+						connections += reactor.connections();
+				}
+			}
+			return connections;
+		});
+		Metrics.gauge("hotels", () -> hotels.size());
+		Metrics.gauge("users", () -> users.size());
+		Metrics.gauge("reviews", () -> reviews.size());
+		Metrics.gauge("bufferPool.hits", bufferPool::hits);
+		Metrics.gauge("bufferPool.misses", bufferPool::misses);
+		Metrics.gauge("log.dropped", Log::dropped);
+		Metrics.gauge("heapUsedBytes", () -> Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory());
+	}
+
+	// Aggiunge periodicamente uno snapshot delle metriche al file, una riga JSON per snapshot
+	private static void startMetricsDump() {
+		Path path = Paths.get(metricsFile);
+		Thread metricsDumper = new Thread(() -> {
+			while (true) {
+				try {
+					Thread.sleep(metricsDumpRate);
+					Files.writeString(path, logGson.toJson(Metrics.snapshot()) + System.lineSeparator(), StandardCharsets.UTF_8,
+							StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+				} catch (IOException e) {
+					Log.log(METRICS_DUMP_FAILED, e.getMessage());
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}, "metrics");
+		metricsDumper.setDaemon(true);
+		metricsDumper.start();
+	}
+
+	// Pool limitato di worker, con thread di piattaforma o virtuali in base alla configurazione.
+	// Se la coda è piena la richiesta viene eseguita dal selector stesso, rallentando la lettura dai client
+	private static ThreadPoolExecutor createWorkerPool() {
+		ThreadFactory threadFactory = null;
+
+		if (workerType.equalsIgnoreCase("virtual")) {
+			try {
+				// Thread.ofVirtual().name("worker-", 0).factory(), disponibile da Java 21
+				Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+				builder = builder.getClass().getMethod("name", String.class, long.class).invoke(builder, "worker-", 0L);
+				threadFactory = (ThreadFactory) builder.getClass().getMethod("factory").invoke(builder);
+			} catch (ReflectiveOperationException e) {
+				System.out.println("[SERVER] Thread virtuali non supportati, uso thread di piattaforma");
+			}
+		}
+
+		if (threadFactory == null) {
+			AtomicInteger threadCount = new AtomicInteger();
+			ThreadFactory defaultFactory = Executors.defaultThreadFactory();
+			threadFactory = r -> {
+				Thread t = defaultFactory.newThread(r);
+				t.setName("worker-" + threadCount.getAndIncrement());
+				t.setDaemon(true);
+				return t;
+			};
+		}
+
+		return new ThreadPoolExecutor(workerThreads, workerThreads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(workerQueueSize), threadFactory, new ThreadPoolExecutor.CallerRunsPolicy());
+	}
+
+	// Carica i tre file JSON in parallelo. Ogni elemento viene inserito nelle strutture finali appena letto,
+	// senza passare da un array intermedio con tutto il contenuto del file
+	private static void loadData() {
+		hotels = new Vector<Hotel>();
+		users = new Vector<User>();
+
+		// Azzero i picchi di memoria per misurare quella usata dal caricamento
+		List<MemoryPoolMXBean> heapPools = new ArrayList<MemoryPoolMXBean>();
+		for (MemoryPoolMXBean memoryPool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (memoryPool.getType() == MemoryType.HEAP) {
+				memoryPool.resetPeakUsage();
+				heapPools.add(memoryPool);
+			}
+		}
+		long start = System.nanoTime();
+
+		// Se disponibile uso lo snapshot binario, purché i file JSON non siano stati modificati dopo di esso
+		boolean fromSnapshot = false;
+		if (binarySnapshot && BinarySnapshot.isNewerThan(binarySnapshotFile, hotelsFile, usersFile, reviewsFile)) {
+			try {
+				BinarySnapshot.read(binarySnapshotFile, ServerMain::loadHotel, ServerMain::loadUser, reviews);
+				fromSnapshot = true;
+			} catch (IOException e) {
+				System.out.println("Errore nella lettura di '" + binarySnapshotFile + "', carico i file JSON");
+				clearData();
+			}
+		}
+
+		if (!fromSnapshot) {
+			ExecutorService loaders = Executors.newFixedThreadPool(3);
+			CompletableFuture.allOf(
+				CompletableFuture.runAsync(() -> jsonToObjects(hotelsFile, Hotel.class, ServerMain::loadHotel), loaders),
+				CompletableFuture.runAsync(() -> jsonToObjects(usersFile, User.class, ServerMain::loadUser), loaders),
+				CompletableFuture.runAsync(() -> jsonToObjects(reviewsFile, Review.class, reviews::add), loaders)
+			).join();
+			loaders.shutdown();
+		}
+
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		long peakHeap = 0;
+		for (MemoryPoolMXBean memoryPool : heapPools)
+			peakHeap += memoryPool.getPeakUsage().getUsed();
+		System.out.printf("[SERVER] Caricati %d hotel, %d utenti e %d recensioni da %s in %d ms (picco heap: %d KB)%n",
+				hotels.size(), users.size(), reviews.size(), fromSnapshot ? "snapshot binario" : "file JSON", elapsed, peakHeap / 1024);
+	}
+
+	// Sostituisce tutti i dati con quelli indicati, senza leggere i file: usato dai benchmark con dati sintetici.
+	// I ranking vanno poi ricalcolati con updateRankings
+	static void replaceData(List<Hotel> newHotels, List<User> newUsers) {
+		if (hotels == null) {
+			hotels = new Vector<Hotel>();
+			users = new Vector<User>();
+		}
+		for (String city : cities)
+			invalidateRanking(city);
+		clearData();
+		rankings = new ConcurrentHashMap<String, List<Hotel>>();
+
+		newHotels.forEach(ServerMain::loadHotel);
+		newUsers.forEach(ServerMain::loadUser);
+		for (User user : newUsers)
+			User.PROGRESSIVE_ID.accumulateAndGet(user.getId() + 1, Math::max);
+	}
+
+	private static void loadHotel(Hotel hotel) {
+		hotels.add(hotel);
+		// Carico il nome delle città capoluogo, per poter fare un ranking per ognuna di esse
+		// In lowercase per gestire le richieste in maniera case insensitive
+		cities.add(hotel.city.toLowerCase());
+		hotelsByCity.computeIfAbsent(hotel.city.toLowerCase(), c -> new Vector<Hotel>()).add(hotel);
+		indexHotel(hotel);
+	}
+
+	private static void loadUser(User user) {
+		users.add(user);
+		// Indicizzo gli utenti per username e per id
+		indexUser(user);
+	}
+
+	// Svuota i dati caricati solo in parte, prima di ricaricarli da un'altra sorgente
+	private static void clearData() {
+		hotels.clear();
+		users.clear();
+		reviews.clear();
+		cities.clear();
+		hotelsByCity.clear();
+		hotelsByNameAndCity.clear();
+		hotelsById.clear();
+		usersByName.clear();
+		usersById.clear();
+	}
+
+	// Parsing da file JSON a oggetti Java: il file contiene un array, di cui leggo un elemento alla volta
+	private static <T> void jsonToObjects(String fileName, Class<T> elementType, Consumer<T> consumer) {
+		TypeAdapter<T> adapter = diskGson.getAdapter(elementType);
+		try (JsonReader reader = new JsonReader(new InputStreamReader(new FileInputStream(fileName), StandardCharsets.UTF_8))) {
+			reader.beginArray();
+			while (reader.hasNext())
+				consumer.accept(adapter.read(reader));
+			reader.endArray();
 		} catch (IOException e) {
 			System.out.println("Errore nell'apertura del file '" + fileName + "'");
 			System.exit(2);
 		}
-		return null;
 	}
 
 	// Parsing da oggetti Java a file JSON
-	private static <T> void objectArrayToJson(T[] objArray, String fileName) {
-		try (FileWriter writer = new FileWriter(fileName)) {
-			gson.toJson(objArray, writer);
+	// Sincronizzato perché più worker potrebbero persistere contemporaneamente sullo stesso file.
+	// Scrivo su un file temporaneo e lo rinomino, così il file non resta mai scritto a metà
+	// Gli oggetti vengono scritti uno alla volta, senza costruire prima una stringa o un array con tutto il contenuto.
+	// Ritorna false se il file non è stato salvato
+	private static <T> boolean objectsToJson(Iterable<T> objects, String fileName) {
+		return writeJsonFile(fileName, writer -> {
+			JsonWriter jsonWriter = diskGson.newJsonWriter(writer);
+			jsonWriter.beginArray();
+			for (T object : objects)
+				diskGson.toJson(object, object.getClass(), jsonWriter);
+			jsonWriter.endArray();
+			jsonWriter.flush();
+		});
+	}
+
+	// Salva su file JSON le prime count recensioni dell'archivio. Ritorna false se il file non è stato salvato
+	private static boolean reviewsToJson(int count) {
+		return writeJsonFile(reviewsFile, writer -> reviews.writeJson(diskGson, writer, count));
+	}
+
+	// Contenuto di un file JSON, scritto sul writer passato
+	private interface JsonContent {
+		void writeTo(Writer writer) throws IOException;
+	}
+
+	// Ritorna false se la scrittura o la rinomina del file sono fallite, e quindi il file contiene ancora i dati precedenti
+	private static synchronized boolean writeJsonFile(String fileName, JsonContent content) {
+		Path tmpFile = Paths.get(fileName + ".tmp");
+		try (
+			FileChannel channel = FileChannel.open(tmpFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			Writer writer = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8), 1 << 16)
+		) {
+			content.writeTo(writer);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+
+		try {
+			Files.move(tmpFile, Paths.get(fileName), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			return true;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	// Persiste la registrazione di un nuovo utente. Chiamato mentre si possiede dataLock
+	private static void persistNewUser(User user) {
+		if (periodicPersistence || (wal == null && inBatch.get())) {
+			usersDirty.set(true);
+			return;
+		}
+
+		if (wal == null) {
+			objectsToJson(users, usersFile);
+			return;
+		}
+
+		try {
+			wal.append('U', logGson.toJson(user));
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	// Persiste una nuova recensione, insieme ai dati aggiornati di hotel e utente. Chiamato mentre si possiede dataLock
+	private static void persistNewReview(Review review, int index, Hotel hotel, User user) {
+		if (periodicPersistence || (wal == null && inBatch.get())) {
+			reviewsDirty.set(true);
+			hotelsDirty.set(true);
+			usersDirty.set(true);
+			return;
+		}
+
+		if (wal == null) {
+			reviewsToJson(reviews.size());
+			objectsToJson(hotels, hotelsFile);
+			objectsToJson(users, usersFile);
+			return;
+		}
+
+		// Le medie dell'hotel e il badge dell'utente vengono ricalcolati dalla recensione durante il recupero
+		try {
+			wal.append('R', logGson.toJson(new ReviewRecord(review, index, hotel.reviews(), user.getReviews())));
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	// Attende che le scritture sul log siano su disco, se richiesto dalla configurazione.
+	// Chiamato dopo aver rilasciato dataLock, così più richieste concorrenti condividono lo stesso fsync
+	private static void commitPersistence() {
+		if (wal == null || inBatch.get())
+			return;
+
+		long start = System.nanoTime();
+		try {
+			wal.commit();
+			commitTimes.recordSince(start);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
 
+	// Salva su file JSON uno snapshot coerente di tutti i dati.
+	// Con il log attivo, i record contenuti nello snapshot non verranno più riapplicati all'avvio
+	private static void saveSnapshot() {
+		synchronized (snapshotLock) {
+			Hotel[] hotelsSnapshot;
+			User[] usersSnapshot;
+			int reviewsSnapshot;
+			long lastSequence = 0;
+
+			// Copio i dati mentre nessuna scrittura è in corso, poi li salvo senza bloccare le richieste
+			synchronized (dataLock) {
+				hotelsSnapshot = hotels.stream().map(Hotel::new).toArray(Hotel[]::new);
+				usersSnapshot = users.stream().map(User::new).toArray(User[]::new);
+				// Le recensioni vengono solo aggiunte, quindi basta ricordarne il numero
+				reviewsSnapshot = reviews.size();
+
+				if (wal != null) {
+					try {
+						lastSequence = wal.rotate();
+					} catch (IOException e) {
+						e.printStackTrace();
+						return;
+					}
+				}
+			}
+
+			boolean saved = objectsToJson(Arrays.asList(hotelsSnapshot), hotelsFile);
+			saved &= objectsToJson(Arrays.asList(usersSnapshot), usersFile);
+			saved &= reviewsToJson(reviewsSnapshot);
+
+			// Scritto dopo i file JSON, così risulta più recente e viene usato al prossimo avvio
+			if (binarySnapshot) {
+				try {
+					BinarySnapshot.write(binarySnapshotFile, hotelsSnapshot, usersSnapshot, reviews, reviewsSnapshot);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+
+			// Se un file non è stato salvato i segmenti ruotati restano l'unica copia delle ultime operazioni:
+			// non registro il checkpoint, così non vengono eliminati e al prossimo avvio vengono riapplicati
+			if (wal != null && !saved)
+				System.out.println("[SERVER] Snapshot non completato, il log viene mantenuto");
+			else if (wal != null) {
+				try {
+					wal.checkpoint(lastSequence);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	// Salva su file JSON solo le collezioni modificate dall'ultimo salvataggio.
+	// Più operazioni nello stesso intervallo costano una sola scrittura per file
+	private static void saveDirtyFiles() {
+		synchronized (snapshotLock) {
+			Hotel[] hotelsSnapshot = null;
+			User[] usersSnapshot = null;
+			int reviewsSnapshot = -1;
+
+			// Azzero i flag e copio i dati in mutua esclusione con le scritture,
+			// così un'operazione successiva alla copia segna di nuovo il file come da salvare
+			synchronized (dataLock) {
+				if (hotelsDirty.getAndSet(false))
+					hotelsSnapshot = hotels.stream().map(Hotel::new).toArray(Hotel[]::new);
+				if (usersDirty.getAndSet(false))
+					usersSnapshot = users.stream().map(User::new).toArray(User[]::new);
+				if (reviewsDirty.getAndSet(false))
+					reviewsSnapshot = reviews.size();
+			}
+
+			// Se la scrittura fallisce il file resta da salvare, e viene riprovato al prossimo salvataggio
+			if (hotelsSnapshot != null && !objectsToJson(Arrays.asList(hotelsSnapshot), hotelsFile))
+				hotelsDirty.set(true);
+			if (usersSnapshot != null && !objectsToJson(Arrays.asList(usersSnapshot), usersFile))
+				usersDirty.set(true);
+			if (reviewsSnapshot >= 0 && !reviewsToJson(reviewsSnapshot))
+				reviewsDirty.set(true);
+		}
+	}
+
+	// Salva i file modificati da un batch con persistence=sync. Le singole operazioni riscrivono i file mentre possiedono
+	// dataLock, quindi anche il batch li scrive senza rilasciarlo: una copia presa prima di un'operazione concorrente
+	// potrebbe altrimenti sovrascrivere sul file i dati più recenti
+	private static void saveBatchFiles() {
+		synchronized (dataLock) {
+			if (hotelsDirty.getAndSet(false) && !objectsToJson(hotels, hotelsFile))
+				hotelsDirty.set(true);
+			if (usersDirty.getAndSet(false) && !objectsToJson(users, usersFile))
+				usersDirty.set(true);
+			if (reviewsDirty.getAndSet(false) && !reviewsToJson(reviews.size()))
+				reviewsDirty.set(true);
+		}
+	}
+
+	// Record del log di una recensione: oltre alla recensione contiene la sua posizione nell'archivio
+	// e il numero di recensioni di hotel e utente dopo averla aggiunta
+	private static class ReviewRecord {
+		private final Review review;
+		private final int index;
+		private final int hotelReviews;
+		private final int userReviews;
+
+		private ReviewRecord(Review review, int index, int hotelReviews, int userReviews) {
+			this.review = review;
+			this.index = index;
+			this.hotelReviews = hotelReviews;
+			this.userReviews = userReviews;
+		}
+	}
+
+	// Riapplica un record del log scritto dopo l'ultimo snapshot.
+	// I file dello snapshot vengono sostituiti uno alla volta, e il checkpoint solo dopo di essi: se il server si è fermato
+	// nel mezzo, lo snapshot contiene già parte dei record successivi al checkpoint. Ogni file registra fin dove è arrivato
+	// (id degli utenti, numero di recensioni nell'archivio e di ogni hotel e utente), quindi riapplico solo le parti mancanti
+	private static void replayRecord(char type, String json) {
+		switch (type) {
+			// Registrazione
+			case 'U': {
+				User user = logGson.fromJson(json, User.class);
+				if (usersById.containsKey(user.getId()))
+					break;
+				users.add(user);
+				indexUser(user);
+			}
+			break;
+			// Recensione
+			case 'R': {
+				ReviewRecord record = logGson.fromJson(json, ReviewRecord.class);
+				Review review = record.review;
+				if (record.index >= reviews.size())
+					reviews.add(review);
+				Hotel hotel = hotelsById.get(review.getHotelId());
+				if (hotel != null && hotel.reviews() < record.hotelReviews)
+					hotel.newReview(review);
+				User user = usersById.get(review.getUserId());
+				if (user != null && user.getReviews() < record.userReviews)
+					user.addReview();
+			}
+			break;
+		}
+	}
+
 	// Connessione con nuovo client
-	private static void handleAccept(Selector selector, SelectionKey key) throws IOException {
+	static void handleAccept(SelectionKey key) throws IOException {
 		ServerSocketChannel server = (ServerSocketChannel) key.channel();
 		SocketChannel client = server.accept();
-		System.out.println("[SERVER] Nuova connessione ricevuta");
+		if (client == null)
+			return;
+		Log.log(CONNECTION_ACCEPTED);
 		client.configureBlocking(false);
-		// Mi preparo a leggere dal client
-		client.register(selector, SelectionKey.OP_READ, new ReadState(bufferSize));
+		// Assegno la connessione ad un reactor, che si preparerà a leggere dal client
+		chooseReactor().addConnection(client);
+	}
+
+	// Sceglie il reactor a cui assegnare una nuova connessione
+	private static Reactor chooseReactor() {
+		if (reactors.length == 1)
+			return reactors[0];
+
+		// Il reactor con meno connessioni aperte
+		if (reactorBalancing.equalsIgnoreCase("leastloaded")) {
+			Reactor leastLoaded = reactors[0];
+			for (Reactor reactor : reactors) {
+				if (reactor.connections() < leastLoaded.connections())
+					leastLoaded = reactor;
+			}
+			return leastLoaded;
+		}
+
+		// Round robin
+		Reactor reactor = reactors[nextReactor];
+		nextReactor = (nextReactor + 1) % reactors.length;
+		return reactor;
 	}
 
 	// Lettura da client
-	private static void handleRead(Selector selector, SelectionKey key) throws IOException {
+	static void handleRead(Reactor reactor, SelectionKey key) throws IOException {
 		SocketChannel client = (SocketChannel) key.channel();
 		ReadState state = (ReadState) key.attachment();
 
+		int bytesRead;
 		try {
 
-			state.count += client.read(state.buffer);
-			System.out.println("[SERVER] Lettura da client");
+			bytesRead = client.read(state.buffer);
+			Log.log(CLIENT_READ);
+			if (bytesRead > 0)
+				bytesIn.add(bytesRead);
 
 		} catch (SocketException e) {
-			System.out.println("[SERVER] Client disconnesso in maniera anomala");
-			client.close(); // Cancella anche la chiave.
+			Log.log(CLIENT_RESET);
+			reactor.closeConnection(key);
 			return;
 		}
 
-		// Devo ancora leggere la lunghezza del messaggio
-		if (state.count < Integer.BYTES)
+		// Il client ha chiuso la connessione
+		if (bytesRead == -1) {
+			Log.log(CLIENT_DISCONNECTED);
+			reactor.closeConnection(key);
 			return;
-
-		// Non ho ancora inserito la lunghezza del messaggio
-		if (state.length == 0) {
-			state.buffer.flip();
-			state.length = state.buffer.getInt();
-			state.buffer.compact();
 		}
 
-		// Non ho ancora letto tutto il messaggio
-		if (state.count < Integer.BYTES + state.length)
-			return;
+		// Estraggo tutti i messaggi completi arrivati con questa lettura, mantenendo quelli parziali
+		ByteBuffer message;
+		while ((message = state.nextMessage()) != null) {
+			Request request = decodeRequest(state, message);
+			Log.log(REQUEST_RECEIVED, request);
+
+			// Richiesta di terminazione
+			if (request.opcode == Protocol.EXIT) {
+				Log.log(CLIENT_DISCONNECTED);
+				reactor.closeConnection(key);
+				return;
+			}
+
+			dispatchRequest(key, state, request);
+		}
+		state.compact();
+	}
 
-		// Costruisco la stringa della richiesta ricevuta
-		state.buffer.flip();
-		byte[] requestBytes = new byte[state.length];
-		state.buffer.get(requestBytes);
-		String request = new String(requestBytes);
+	// Decodifica il messaggio con la versione del protocollo della connessione, stabilita dal primo messaggio:
+	// un handshake sceglie la versione indicata dal client (e se comprimere le risposte), qualsiasi altro messaggio la versione testuale.
+	// Eseguito dal reactor, perché la versione deve essere nota prima di decodificare il messaggio successivo
+	private static Request decodeRequest(ReadState state, ByteBuffer message) {
+		if (state.protocolVersion == 0) {
+			if (Protocol.isHandshake(message)) {
+				Request handshake = Protocol.decodeHandshake(message);
+				state.protocolVersion = handshake.version >= Protocol.VERSION_BINARY ? Protocol.VERSION_BINARY : Protocol.VERSION_TEXT;
+				state.compression = compression && (handshake.flags & Protocol.FLAG_COMPRESSION) != 0;
+				return handshake;
+			}
+			state.protocolVersion = Protocol.VERSION_TEXT;
+		}
 
-		System.out.println("[SERVER] Richiesta ricevuta: " + request);
+		if (state.protocolVersion == Protocol.VERSION_BINARY)
+			return Protocol.decodeRequest(message);
+		return Protocol.parseText(state.text(message), exitMessage);
+	}
 
-		// Richiesta di terminazione
-		if (request.equalsIgnoreCase(exitMessage)) {
-			System.out.println("[SERVER] Client disconnesso");
-			client.close(); // Cancella anche la chiave.
+	// Prepara la risposta alla richiesta, direttamente o tramite un worker. Le risposte vengono accodate
+	// sulla connessione nello stesso ordine delle richieste
+	private static void dispatchRequest(SelectionKey key, ReadState state, Request request) {
+		handledRequests.increment();
+
+		// Nessun worker: preparo la risposta direttamente sul selector
+		if (workerPool == null) {
+			ByteBuffer response = handleResponse(request, state);
+			if (response != null)
+				state.responses.add(response);
+			// Mi preparo a scrivere sul client
+			key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
 			return;
 		}
 
-		// Preparo la risposta per il client
-		handleResponse(request, state);
-		// Mi preparo a scrivere sul client
-		client.register(selector, SelectionKey.OP_WRITE, state);
+		// Se non c'è già un worker che sta servendo questa connessione, ne avvio uno
+		if (state.enqueueRequest(request))
+			workerPool.execute(() -> processRequests(key, state));
 	}
 
-	private static void handleResponse(String request, ReadState state) {
-		String requestParameters[] = request.split(";");
+	// Eseguito da un worker: elabora in ordine le richieste accodate sulla connessione
+	private static void processRequests(SelectionKey key, ReadState state) {
+		Request request;
+		while ((request = state.nextRequest()) != null) {
+			long allocatedBefore = allocatedBytes();
+			try {
+				ByteBuffer response = handleResponse(request, state);
+				if (response != null)
+					state.responses.add(response);
+			} catch (RuntimeException e) {
+				// Senza risposta il client assocerebbe le successive alle richieste sbagliate: il reactor chiuderà la connessione
+				Log.log(REQUEST_FAILED, e);
+				state.fail();
+			}
 
-		// Richiesta vuota
-		if (requestParameters.length == 0)
-			return;
+			recordAllocations(allocatedBefore);
+
+			// Chiedo al reactor di scrivere la risposta
+			state.reactor.complete(key);
+		}
+	}
 
-		int requestCode = Integer.parseInt(requestParameters[0]);
+	// Prepara la risposta alla richiesta, registrandone la durata per codice di richiesta
+	static ByteBuffer handleResponse(Request request, ReadState state) {
+		long start = System.nanoTime();
+		ByteBuffer response = respond(request, state);
+		int opcode = request.opcode >= Protocol.UNKNOWN && request.opcode <= Protocol.METRICS ? request.opcode : Protocol.UNKNOWN;
+		responseTimes[opcode - Protocol.UNKNOWN].recordSince(start);
+		return response;
+	}
+
+	private static ByteBuffer respond(Request request, ReadState state) {
+		boolean binary = state.protocolVersion == Protocol.VERSION_BINARY;
+		ByteBuffer buffer = null;
 
 		// Gestisco la richiesta opportunamente e preparo il buffer di risposta
-		switch (requestCode) {
+		switch (request.opcode) {
+			// Scelta della versione del protocollo
+			case Protocol.HANDSHAKE: {
+				buffer = bytesResponse(Protocol.handshake(state.protocolVersion, state.compression ? Protocol.FLAG_COMPRESSION : 0));
+			}
+			break;
 			// Register
-			case 1: {
-				int responseCode = register(requestParameters, state);
-				state.buffer = ByteBuffer.allocate(Integer.BYTES);
-				state.buffer.putInt(responseCode);
+			case Protocol.REGISTER: {
+				int responseCode = register(request.first, request.second);
+				buffer = codeResponse(responseCode, binary);
 			}
 			break;
 			// Login o Logout
-			case 2: {
+			case Protocol.LOGIN: {
 				int responseCode;
 				if (state.userId != 0) { // Già loggato
 					responseCode = logout(state);
 				} else { // Non loggato
-					responseCode = login(requestParameters, state);
+					responseCode = login(request.first, request.second, state);
 				}
-				state.buffer = ByteBuffer.allocate(Integer.BYTES);
-				state.buffer.putInt(responseCode);
+				buffer = codeResponse(responseCode, binary);
 			}
 			break;
 			// Cerca hotel
-			case 3: {
-				String response = searchHotel(requestParameters);
-				byte responseBytes[] = response.getBytes();
-				state.buffer = ByteBuffer.allocate(Integer.BYTES + responseBytes.length);
-				state.buffer.putInt(responseBytes.length).put(responseBytes);
+			case Protocol.SEARCH_HOTEL: {
+				Hotel hotel = searchHotel(request.first, request.second);
+				if (binary)
+					buffer = bytesResponse(Protocol.encodeHotel(hotel));
+				else
+					buffer = stringResponse(hotel == null ? "" : wireGson.toJson(hotel));
 			}
 			break;
 			// Cerca tutti gli hotel in una città
-			case 4: {
-				String response = searchAllHotels(requestParameters);
-				byte responseBytes[] = response.getBytes();
-				state.buffer = ByteBuffer.allocate(Integer.BYTES + responseBytes.length);
-				state.buffer.putInt(responseBytes.length).put(responseBytes);
+			case Protocol.SEARCH_ALL_HOTELS: {
+				byte[] response = searchAllHotels(request.first, binary);
+				buffer = bytesResponse(response);
 			}
 			break;
 			// Inserisci recensione
-			case 5: {
-				int responseCode = insertReview(state.userId, requestParameters);
-				state.buffer = ByteBuffer.allocate(Integer.BYTES);
-				state.buffer.putInt(responseCode);
+			case Protocol.INSERT_REVIEW: {
+				int responseCode = insertReview(state.userId, request.first, request.second, request.rates);
+				buffer = codeResponse(responseCode, binary);
 			}
 			break;
 			// Mostra badge
-			case 6: {
+			case Protocol.SHOW_BADGE: {
 				String response = showMyBadge(state);
-				byte responseBytes[] = response.getBytes();
-				state.buffer = ByteBuffer.allocate(Integer.BYTES + responseBytes.length);
-				state.buffer.putInt(responseBytes.length).put(responseBytes);
+				buffer = stringResponse(response);
 			}
 			break;
+			// Più richieste in un'unica risposta
+			case Protocol.BATCH: {
+				buffer = batchResponse(request.batch, state);
+			}
+			break;
+			// Snapshot delle metriche, solo per i client ammessi da metricsAccess (agli altri una stringa vuota)
+			case Protocol.METRICS: {
+				if (metricsAllowed(state))
+					buffer = stringResponse(wireGson.toJson(Metrics.snapshot()));
+				else
+					buffer = stringResponse("");
+			}
+			break;
+		}
+
+		// Codice di richiesta sconosciuto: con il protocollo binario rispondo comunque con un messaggio vuoto,
+		// così il client può continuare ad associare le risposte alle richieste
+		if (buffer == null) {
+			if (!binary)
+				return null;
+			buffer = bytesResponse(EMPTY_RESPONSE);
 		}
 
+		// Comprimo le risposte più lunghe, ma non quelle delle richieste di un batch, che viene compresso per intero
+		if (compressible(request.opcode) && !inBatch.get())
+			buffer = compressResponse(state, buffer);
+
 		// Mi preparo alla lettura dal buffer
-		state.buffer.flip();
+		buffer.flip();
+		return buffer;
 	}
 
-	// Scrittura sul client
-	private static void handleWrite(Selector selector, SelectionKey key) throws IOException {
-		SocketChannel client = (SocketChannel) key.channel();
-		ReadState state = (ReadState) key.attachment();
+	// Esegue in ordine le richieste del batch, con lo stato di login della connessione, e ne raccoglie i risultati
+	// in un'unica risposta. Le scritture su file, o l'attesa del log, avvengono una sola volta alla fine del batch
+	private static ByteBuffer batchResponse(Request[] requests, ReadState state) {
+		boolean binary = state.protocolVersion == Protocol.VERSION_BINARY;
+		ByteBuffer[] results = new ByteBuffer[requests.length];
+		int length = Integer.BYTES;
 
-		client.write(state.buffer);
-		System.out.println("[SERVER] Scrittura su client");
+		inBatch.set(true);
+		try {
+			for (int i = 0; i < requests.length; i++) {
+				ByteBuffer result = handleResponse(requests[i], state);
+				// Il risultato è il contenuto della risposta, senza la sua lunghezza
+				if (result != null && framedResponse(requests[i].opcode, binary))
+					result.position(Integer.BYTES);
+				results[i] = result;
+				length += Integer.BYTES + (result == null ? 0 : result.remaining());
+			}
+		} finally {
+			inBatch.set(false);
+		}
 
-		// Devo finire di scrivere sul client
-		if (state.buffer.hasRemaining())
-			return;
+		// Salvo una sola volta tutte le modifiche del batch
+		if (wal == null && !periodicPersistence)
+			dirtyFilesTimes.time(ServerMain::saveBatchFiles);
+		commitPersistence();
 
-		// Mi preparo alla lettura di una nuova richiesta
-		state.reset();
-		client.register(selector, SelectionKey.OP_READ, state);
+		ByteBuffer buffer = bufferPool.acquire(Integer.BYTES + length);
+		buffer.putInt(length).putInt(requests.length);
+		for (ByteBuffer result : results) {
+			if (result == null) {
+				buffer.putInt(0);
+				continue;
+			}
+			buffer.putInt(result.remaining()).put(result);
+			bufferPool.release(result);
+		}
+		return buffer;
 	}
 
-	private static int register(String requestParameters[], ReadState state) {
-		if (requestParameters.length < 2)
-			return 1;
+	// True se la risposta alla richiesta è preceduta dalla sua lunghezza: con il protocollo testuale i codici di risposta non lo sono
+	private static boolean framedResponse(int opcode, boolean binary) {
+		return binary || opcode == Protocol.SEARCH_HOTEL || opcode == Protocol.SEARCH_ALL_HOTELS || opcode == Protocol.SHOW_BADGE
+				|| opcode == Protocol.METRICS;
+	}
 
-		if (requestParameters.length < 3)
-			return 2;
+	// Risposte che possono essere lunghe, e che vale la pena comprimere
+	private static boolean compressible(int opcode) {
+		return opcode == Protocol.SEARCH_HOTEL || opcode == Protocol.SEARCH_ALL_HOTELS || opcode == Protocol.BATCH || opcode == Protocol.METRICS;
+	}
+
+	// Comprime la risposta (già preceduta dalla sua lunghezza) se la connessione lo ha richiesto e se supera la soglia.
+	// Se la compressione non la riduce, la risposta resta invariata
+	private static ByteBuffer compressResponse(ReadState state, ByteBuffer buffer) {
+		int length = buffer.position() - Integer.BYTES;
+		if (!state.compression || length < compressionThreshold)
+			return buffer;
+
+		ByteBuffer compressed = bufferPool.acquire(2 * Integer.BYTES + length);
+		compressed.position(2 * Integer.BYTES).limit(2 * Integer.BYTES + length);
+		if (!state.deflate(buffer.slice(Integer.BYTES, length), compressed, compressionLevel)) {
+			bufferPool.release(compressed);
+			return buffer;
+		}
 
-		String username = requestParameters[1];
-		String password = requestParameters[2];
+		int compressedLength = compressed.position() - Integer.BYTES;
+		compressed.putInt(0, Protocol.COMPRESSED | compressedLength).putInt(Integer.BYTES, length);
+		bufferPool.release(buffer);
+		uncompressedBytes.add(length);
+		compressedBytes.add(compressedLength);
+		return compressed;
+	}
+
+	// Risposta con un codice, in un buffer preso dal pool: un intero con il protocollo testuale,
+	// un messaggio di un byte con quello binario
+	private static ByteBuffer codeResponse(int responseCode, boolean binary) {
+		if (!binary) {
+			ByteBuffer buffer = bufferPool.acquire(Integer.BYTES);
+			buffer.putInt(responseCode);
+			return buffer;
+		}
+
+		ByteBuffer buffer = bufferPool.acquire(Integer.BYTES + 1);
+		buffer.putInt(1).put((byte) responseCode);
+		return buffer;
+	}
+
+	// Risposta con una stringa preceduta dalla sua lunghezza, codificata direttamente in un buffer preso dal pool
+	private static ByteBuffer stringResponse(String response) {
+		CharsetEncoder encoder = encoders.get();
+		int maxLength = (int) Math.ceil(response.length() * (double) encoder.maxBytesPerChar());
+		ByteBuffer buffer = bufferPool.acquire(Integer.BYTES + maxLength);
+
+		buffer.position(Integer.BYTES);
+		encoder.reset();
+		encoder.encode(CharBuffer.wrap(response), buffer, true);
+		encoder.flush(buffer);
+		buffer.putInt(0, buffer.position() - Integer.BYTES);
+		return buffer;
+	}
+
+	// Risposta già codificata preceduta dalla sua lunghezza, copiata in un buffer preso dal pool
+	private static ByteBuffer bytesResponse(byte[] response) {
+		ByteBuffer buffer = bufferPool.acquire(Integer.BYTES + response.length);
+		buffer.putInt(response.length).put(response);
+		return buffer;
+	}
+
+	// Messaggio già completo di lunghezza, copiato in un buffer preso dal pool
+	private static ByteBuffer bytesResponse(ByteBuffer message) {
+		ByteBuffer buffer = bufferPool.acquire(message.remaining());
+		buffer.put(message);
+		return buffer;
+	}
+
+	// Restituisce al pool il buffer di una risposta non scritta su un client, ad esempio nei benchmark
+	static void releaseResponse(ByteBuffer buffer) {
+		bufferPool.release(buffer);
+	}
+
+	// Scrittura sul client
+	static void handleWrite(Reactor reactor, SelectionKey key) throws IOException {
+		SocketChannel client = (SocketChannel) key.channel();
+		ReadState state = (ReadState) key.attachment();
+
+		ByteBuffer buffer;
+		while ((buffer = state.responses.peek()) != null) {
+			bytesOut.add(client.write(buffer));
+			Log.log(CLIENT_WRITE);
 
+			// Devo finire di scrivere sul client
+			if (buffer.hasRemaining())
+				return;
+
+			state.responses.poll();
+			bufferPool.release(buffer);
+		}
+
+		// Nessuna risposta in sospeso, torno ad aspettare solo nuove richieste
+		key.interestOps(SelectionKey.OP_READ);
+	}
+
+	private static int register(String username, String password) {
 		// Username richiesto
-		if (username == "")
+		if (username == null || username.isEmpty())
 			return 1;
 
 		// Password richiesta
-		if (password == "")
+		if (password == null || password.isEmpty())
 			return 2;
 
+		// Creo il nuovo utente solo se l'username è libero, in maniera atomica rispetto ad altre registrazioni
+		User[] created = new User[1];
+		User user = usersByName.computeIfAbsent(username, u -> created[0] = new User(username, password));
+
 		// Username già esistente
-		if (users.stream().anyMatch(u -> u.getUsername().equals(username)))
+		if (user != created[0])
 			return 3;
 
-		// Creo il nuovo utente e lo persisto sia sul server in esecuzione che sul file JSON
-		User newUser = new User(username, password);
-		users.add(newUser);
-		objectArrayToJson(users.toArray(), usersFile);
+		// Lo persisto sia sul server in esecuzione che su disco
+		synchronized (dataLock) {
+			usersById.put(user.getId(), user);
+			users.add(user);
+			long start = System.nanoTime();
+			persistNewUser(user);
+			persistTimes.recordSince(start);
+		}
+		commitPersistence();
 		return 0;
 	}
 
-	private static int login(String requestParameters[], ReadState state) {
-		if (requestParameters.length < 3)
-			return 1;
-
-		String username = requestParameters[1];
-		String password = requestParameters[2];
+	// Aggiunge l'utente agli indici per username e per id. A parità di username resta il primo utente inserito
+	private static void indexUser(User user) {
+		usersByName.putIfAbsent(user.getUsername(), user);
+		usersById.putIfAbsent(user.getId(), user);
+	}
 
+	private static int login(String username, String password, ReadState state) {
 		// Username e Password richieste
-		if (username == "" || password == "")
+		if (username == null || password == null || username.isEmpty() || password.isEmpty())
 			return 1;
 
-		List<User> usersFound = users.stream()
-				.filter(u -> u.getUsername().equals(username) && u.getPassword().equals(password)).toList();
+		User user = usersByName.get(username);
 
 		// Username o Password errate
-		if (usersFound.size() == 0)
+		if (user == null || !user.getPassword().equals(password))
 			return 1;
 
 		// Tengo traccia dell'utente autenticato nell'attachment
-		state.userId = usersFound.get(0).getId();
+		state.userId = user.getId();
 		return 0;
 	}
 
@@ -398,84 +1343,129 @@ public class ServerMain {
 		return 0;
 	}
 
-	private static String searchHotel(String requestParameters[]) {
-		if (requestParameters.length < 3)
-			return "";
+	// Hotel con nome e città indicati, oppure null se non esiste
+	static Hotel searchHotel(String hotelName, String cityName) {
+		if (hotelName == null || cityName == null)
+			return null;
 
-		String hotelName = requestParameters[1];
-		String cityName = requestParameters[2];
+		return findHotel(hotelName, cityName);
+	}
 
-		for (Hotel hotel : hotels) {
-			if (hotel.name.equalsIgnoreCase(hotelName) && hotel.city.equalsIgnoreCase(cityName))
-				return gson.toJson(hotel); // Ritorno il primo hotel trovato
-		}
+	// Chiave dell'indice degli hotel, indipendente da maiuscole e minuscole
+	private static String hotelKey(String hotelName, String cityName) {
+		return hotelName.toLowerCase() + '\0' + cityName.toLowerCase();
+	}
 
-		// Nessun hotel trovato
-		return "";
+	// Aggiunge l'hotel all'indice per nome e città. A parità di chiave resta il primo hotel inserito
+	private static void indexHotel(Hotel hotel) {
+		hotelsByNameAndCity.putIfAbsent(hotelKey(hotel.name, hotel.city), hotel);
+		hotelsById.putIfAbsent(hotel.id(), hotel);
 	}
 
-	private static String searchAllHotels(String requestParameters[]) {
-		if (requestParameters.length < 2)
-			return "";
+	// Cerca l'hotel con nome e città indicati, oppure null se non esiste
+	private static Hotel findHotel(String hotelName, String cityName) {
+		return hotelsByNameAndCity.get(hotelKey(hotelName, cityName));
+	}
+
+	// Hotel della città ordinati per ranking, in JSON oppure con la codifica binaria del protocollo
+	static byte[] searchAllHotels(String cityName, boolean binary) {
+		byte[] emptyResponse = binary ? EMPTY_HOTELS : EMPTY_RESPONSE;
+		if (cityName == null)
+			return emptyResponse;
 
-		String cityName = requestParameters[1];
+		String city = cityName.toLowerCase();
 
-		List<Hotel> filteredHotels = rankings.get(cityName.toLowerCase());
+		List<Hotel> filteredHotels = cityRanking(city);
 
 		// Nessun hotel trovato
 		if (filteredHotels == null || filteredHotels.size() == 0)
-			return "";
+			return emptyResponse;
+
+		// Ritorno gli hotel ordinati per ranking, serializzati solo se il ranking è cambiato dall'ultima richiesta
+		if (binary)
+			return binaryRankingCache.get(city, () -> Protocol.encodeHotels(cityRanking(city)));
+		return rankingCache.get(city, () -> wireGson.toJson(cityRanking(city)).getBytes(StandardCharsets.UTF_8));
+	}
 
-		// Ritorno gli hotel ordinati per ranking
-		return gson.toJson(filteredHotels);
+	// Il ranking della città è cambiato: le risposte salvate non sono più valide
+	private static void invalidateRanking(String city) {
+		rankingCache.invalidate(city);
+		binaryRankingCache.invalidate(city);
 	}
 
-	private static int insertReview(int userId, String requestParameters[]) {
-		if (requestParameters.length < 8)
+	// Hotel della città ordinati per ranking, oppure null se la città non esiste
+	private static List<Hotel> cityRanking(String city) {
+		if (!liveRankings)
+			return rankings.get(city);
+		return liveRanking.snapshot(city);
+	}
+
+	private static int insertReview(int userId, String hotelName, String cityName, int[] rates) {
+		if (hotelName == null || cityName == null || rates == null)
 			return 2;
 
-		List<User> usersFound = users.stream().filter(u -> u.getId() == userId).toList();
+		User user = usersById.get(userId);
 
 		// L'id dell'utente non esiste
-		if (usersFound.isEmpty())
+		if (user == null)
 			return 2;
 
-		User user = usersFound.get(0);
-
-		String hotelName = requestParameters[1];
-		String cityName = requestParameters[2];
-		int rate = Integer.parseInt(requestParameters[3]);
-		int cleaningRate = Integer.parseInt(requestParameters[4]);
-		int positionRate = Integer.parseInt(requestParameters[5]);
-		int servicesRate = Integer.parseInt(requestParameters[6]);
-		int qualityRate = Integer.parseInt(requestParameters[7]);
+		int rate = rates[0];
+		int cleaningRate = rates[1];
+		int positionRate = rates[2];
+		int servicesRate = rates[3];
+		int qualityRate = rates[4];
 		
 		// Controlla che tutti i rate siano nel range 1-5, in caso contrario restituisce un codice di errore
 		if (checkRates(rate, cleaningRate, positionRate, servicesRate, qualityRate) == false)
 			return 2;
 
-		for (Hotel hotel : hotels) {
-			// Trovo l'hotel che devo recensire
-			if (hotel.name.equalsIgnoreCase(hotelName) && hotel.city.equalsIgnoreCase(cityName)) {
-				// Aggiungo la recensione con i parametri passati
-				Review review = new Review(userId, hotel.id(), rate, new Rating(cleaningRate, positionRate, servicesRate, qualityRate), new Date());
-				reviews.add(review);
-				// Aggiorno le medie per il successivo calcolo dei ranking
-				hotel.newReview(review);
-				// Aggiorno il numero di recensioni per il calcolo del badge
-				user.addReview();
+		// Trovo l'hotel che devo recensire
+		Hotel hotel = findHotel(hotelName, cityName);
+		if (hotel == null)
+			return 1;
 
-				// Persisto le informazioni sui file JSON
-				objectArrayToJson(reviews.toArray(), reviewsFile);
-				objectArrayToJson(hotels.toArray(), hotelsFile);
-				objectArrayToJson(users.toArray(), usersFile);
-				return 0;
-			}
+		// Aggiungo la recensione con i parametri passati
+		Review review = new Review(userId, hotel.id(), rate, new Rating(cleaningRate, positionRate, servicesRate, qualityRate), new Date());
+		synchronized (dataLock) {
+			int index = reviews.add(review);
+			// Aggiorno le medie per il successivo calcolo dei ranking
+			hotel.newReview(review);
+			// Aggiorno il numero di recensioni per il calcolo del badge
+			user.addReview();
+			// Persisto le informazioni su disco
+			long start = System.nanoTime();
+			persistNewReview(review, index, hotel, user);
+			persistTimes.recordSince(start);
 		}
-
-		return 1;
+		commitPersistence();
+
+		Hotel newFirstPlace = null;
+		if (liveRankings) {
+			// Riposiziono subito l'hotel nel ranking
+			newFirstPlace = liveRanking.update(hotel.city.toLowerCase(), hotel);
+		} else {
+			// Il ranking va ricalcolato al prossimo aggiornamento
+			dirtyCities.add(hotel.city.toLowerCase());
+		}
+		// La risposta salvata per il ranking della città contiene i vecchi dati dell'hotel: la invalido solo dopo
+		// aver aggiornato il ranking, altrimenti una ricerca concorrente potrebbe salvare il vecchio ranking con la nuova versione
+		invalidateRanking(hotel.city.toLowerCase());
+		// Se è cambiato il primo posto notifico tutti i client
+		if (newFirstPlace != null)
+			notifyAll(newFirstPlace.city, newFirstPlace.name);
+		return 0;
 	}
 	
+	// Le metriche rivelano traffico e carico del server: di default le ottiene solo chi si connette dalla stessa macchina
+	private static boolean metricsAllowed(ReadState state) {
+		if (metricsAccess.equalsIgnoreCase("all"))
+			return true;
+		if (metricsAccess.equalsIgnoreCase("authenticated"))
+			return state.userId != 0;
+		return state.local;
+	}
+
 	// Controlla che tutti i rate siano nel range corretto. In caso contrario ritorna false
 	private static boolean checkRates(int rate, int cleaningRate, int positionRate, int servicesRate, int qualityRate) {
 		if (rate < 1 || rate > 5)
@@ -493,40 +1483,115 @@ public class ServerMain {
 	}
 
 	private static String showMyBadge(ReadState state) {
-		List<User> usersFound = users.stream().filter(u -> u.getId() == state.userId).toList();
+		User user = usersById.get(state.userId);
 
 		// Utente non trovato
-		if (usersFound.size() == 0)
+		if (user == null)
 			return "Errore";
 
 		// Ritorno la stringa che rappresenta il badge
-		return usersFound.get(0).getBadge();
+		return user.getBadge();
 	}
 
-	private static void updateRankings() {
-		for (String city : cities) {
-			List<Hotel> oldCityRanking = rankings.get(city);
+	// Ricalcola i ranking di tutte le città, in parallelo se rankingParallelism è maggiore di 1
+	static void updateRankings() {
+		// Ordine deterministico in cui vengono inviate le notifiche
+		List<String> cityList = new ArrayList<String>(cities);
+		Collections.sort(cityList);
+		dirtyCities.removeAll(cityList);
+
+		if (liveRankings) {
+			List<Hotel> newFirstPlaces = rankCities(cityList, city -> liveRanking.rebuild(city, hotelsByCity.getOrDefault(city, List.of())));
+			for (int i = 0; i < cityList.size(); i++) {
+				invalidateRanking(cityList.get(i));
+				Hotel newFirstPlace = newFirstPlaces.get(i);
+				if (newFirstPlace != null)
+					notifyAll(newFirstPlace.city, newFirstPlace.name);
+			}
+			return;
+		}
 
-			// Calcolo il nuovo ranking ordinando usando la classe Comparable
-			List<Hotel> newCityRanking = hotels.stream()
-					.filter(h -> h.city.equalsIgnoreCase(city))
-					.sorted(comparator)
-					.toList();
+		List<List<Hotel>> newRankings = rankCities(cityList, city -> comparator.sortByRanking(hotelsByCity.getOrDefault(city, List.of())));
 
-			// Aggiorno il ranking associato a quella città
-			rankings.put(city, newCityRanking);
+		// Pubblico tutti i nuovi ranking insieme, sostituendo la mappa
+		Map<String, List<Hotel>> oldRankings = rankings;
+		Map<String, List<Hotel>> newRankingsMap = new ConcurrentHashMap<String, List<Hotel>>(oldRankings);
+		for (int i = 0; i < cityList.size(); i++)
+			newRankingsMap.put(cityList.get(i), newRankings.get(i));
+		rankings = newRankingsMap;
 
-			// Se non ci sono hotel associati a quella città
-			if (oldCityRanking == null || oldCityRanking.isEmpty() || newCityRanking == null || newCityRanking.isEmpty())
-				continue;
+		for (int i = 0; i < cityList.size(); i++)
+			rankingUpdated(cityList.get(i), oldRankings.get(cityList.get(i)), newRankings.get(i));
+	}
+
+	// Applica ranker ad ogni città, sul pool dedicato se configurato. I risultati sono nello stesso ordine delle città
+	private static <T> List<T> rankCities(List<String> cityList, Function<String, T> ranker) {
+		if (rankingPool == null)
+			return cityList.stream().map(ranker).toList();
+
+		// Le città sono indipendenti tra loro, quindi posso calcolarne i ranking in parallelo
+		return rankingPool.submit(() -> cityList.parallelStream().map(ranker).toList()).join();
+	}
 
-			Hotel oldFirstPlace = oldCityRanking.get(0);
-			Hotel newFirstPlace = newCityRanking.get(0);
+	// Ricalcola solo i ranking delle città che hanno ricevuto recensioni dall'ultimo aggiornamento
+	private static void updateDirtyRankings() {
+		Iterator<String> dirty = dirtyCities.iterator();
+		while (dirty.hasNext()) {
+			String city = dirty.next();
+			// Rimuovo la città prima del calcolo, così una recensione che arriva nel frattempo la segna di nuovo
+			dirty.remove();
+			updateRanking(city);
+		}
+	}
 
-			// Se è cambiato il primo posto, notifico tutti i client
-			if (newFirstPlace.id() != oldFirstPlace.id())
+	private static void updateRanking(String city) {
+		// Ranking aggiornati ad ogni recensione: li ricostruisco solo per aggiornare l'attualità delle recensioni
+		if (liveRankings) {
+			Hotel newFirstPlace = liveRanking.rebuild(city, hotelsByCity.getOrDefault(city, List.of()));
+			invalidateRanking(city);
+			if (newFirstPlace != null)
 				notifyAll(newFirstPlace.city, newFirstPlace.name);
+			return;
+		}
+
+		List<Hotel> oldCityRanking = rankings.get(city);
+
+		// Calcolo il nuovo ranking, calcolando il punteggio di ogni hotel una sola volta
+		List<Hotel> newCityRanking = comparator.sortByRanking(hotelsByCity.getOrDefault(city, List.of()));
+
+		// Aggiorno il ranking associato a quella città
+		rankings.put(city, newCityRanking);
+		rankingUpdated(city, oldCityRanking, newCityRanking);
+	}
+
+	// Chiamato dopo aver pubblicato il nuovo ranking della città: invalida la risposta salvata
+	// se l'ordine è cambiato e notifica i client se è cambiato il primo posto
+	private static void rankingUpdated(String city, List<Hotel> oldCityRanking, List<Hotel> newCityRanking) {
+		if (!sameOrder(oldCityRanking, newCityRanking))
+			invalidateRanking(city);
+
+		// Se non ci sono hotel associati a quella città
+		if (oldCityRanking == null || oldCityRanking.isEmpty() || newCityRanking == null || newCityRanking.isEmpty())
+			return;
+
+		Hotel oldFirstPlace = oldCityRanking.get(0);
+		Hotel newFirstPlace = newCityRanking.get(0);
+
+		// Se è cambiato il primo posto, notifico tutti i client
+		if (newFirstPlace.id() != oldFirstPlace.id())
+			notifyAll(newFirstPlace.city, newFirstPlace.name);
+	}
+
+	// Controlla se due ranking contengono gli stessi hotel nello stesso ordine
+	private static boolean sameOrder(List<Hotel> oldRanking, List<Hotel> newRanking) {
+		if (oldRanking == null || oldRanking.size() != newRanking.size())
+			return false;
+
+		for (int i = 0; i < newRanking.size(); i++) {
+			if (oldRanking.get(i).id() != newRanking.get(i).id())
+				return false;
 		}
+		return true;
 	}
 
 	private static void notifyAll(String cityName, String hotelName) {
@@ -541,7 +1606,7 @@ public class ServerMain {
 		try {
 			// Mando la notifica sul gruppo multicast
 			notificationSocket.send(dp);
-			System.out.println("[SERVER] Notifica inviata");
+			Log.log(NOTIFICATION_SENT);
 		} catch (IOException e) {
 			// Errore di invio
 		}
@@ -1,7 +1,9 @@
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class User {
 
-	public static int PROGRESSIVE_ID = 1;
+	// Atomico perché più utenti possono registrarsi contemporaneamente
+	public static final AtomicInteger PROGRESSIVE_ID = new AtomicInteger(1);
 	
 	private int id;
 	private String username;
@@ -18,12 +20,30 @@ public class User {
 	}
 
 	public User(String username, String password) {
-		this.id = PROGRESSIVE_ID++;
+		this.id = PROGRESSIVE_ID.getAndIncrement();
 		this.username = username;
 		this.password = password;
 		this.badge = ExperienceLevel.Recensore;
 	}
 
+	// Utente con le recensioni già inserite, letto da uno snapshot
+	public User(int id, String username, String password, int reviews) {
+		this(id, username, password);
+		this.reviews = reviews;
+		updateExperienceLevel();
+	}
+
+	// Copia dell'utente con il numero attuale di recensioni, usata per gli snapshot
+	public User(User other) {
+		synchronized (other) {
+			this.id = other.id;
+			this.username = other.username;
+			this.password = other.password;
+			this.reviews = other.reviews;
+			this.badge = other.badge;
+		}
+	}
+
 	public int getId() {
 		return id;
 	}
@@ -44,7 +64,7 @@ public class User {
 		return badge.toString();
 	}
 	
-	public void addReview() {
+	public synchronized void addReview() {
 		reviews++;
 		updateExperienceLevel();
 	}
@@ -0,0 +1,227 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Stream;
+
+// Log in sola aggiunta delle operazioni di scrittura (recensioni e registrazioni), un record compatto per riga.
+// I file JSON diventano snapshot periodici: all'avvio si carica lo snapshot e si riapplicano i record successivi.
+// Il log è diviso in segmenti (file.1, file.2, ...): ad ogni snapshot si passa ad un nuovo segmento,
+// e dopo averlo scritto si eliminano quelli vecchi, già contenuti nello snapshot
+public class WriteAheadLog {
+
+	// Quando forzare la scrittura su disco dei record
+	public enum Fsync {
+		ALWAYS, // Prima di rispondere al client
+		INTERVAL, // Periodicamente, ad ogni autosaveRate
+		NEVER // Lasciato al sistema operativo
+	}
+
+	// Chiamato durante il recupero per ogni record successivo all'ultimo snapshot
+	public interface RecordHandler {
+		void handle(char type, String json);
+	}
+
+	private final String fileName;
+	private final Fsync fsync;
+	private final Path checkpointFile;
+
+	private FileChannel channel;
+	private int segment; // Indice del segmento su cui sto scrivendo
+	private long sequence; // Numero dell'ultimo record scritto
+	// Serializza gli fsync: chi lo ottiene forza su disco anche i record di chi è in attesa
+	private final Object syncLock = new Object();
+	private long syncedSequence; // Numero dell'ultimo record forzato su disco, protetto da syncLock
+
+	public WriteAheadLog(String fileName, Fsync fsync) {
+		this.fileName = fileName;
+		this.fsync = fsync;
+		this.checkpointFile = Paths.get(fileName + ".checkpoint");
+	}
+
+	// Riapplica i record non contenuti nell'ultimo snapshot e apre un nuovo segmento su cui scrivere.
+	// Ritorna il numero di record riapplicati
+	public long recover(RecordHandler handler) throws IOException {
+		long checkpoint = Files.exists(checkpointFile) ? Long.parseLong(Files.readString(checkpointFile).trim()) : 0;
+		sequence = checkpoint;
+		long replayed = 0;
+
+		// Al primo record non valido interrompo tutto il recupero: i record successivi, anche nei segmenti seguenti,
+		// verrebbero applicati dopo un buco
+		List<Integer> segments = segments();
+		int damaged = -1; // Segmento con il primo record non valido
+		long validBytes = 0; // Byte del segmento prima del record non valido
+		replay:
+		for (int index : segments) {
+			segment = Math.max(segment, index);
+			damaged = index;
+			validBytes = 0;
+
+			try (BufferedReader reader = Files.newBufferedReader(segmentFile(index), StandardCharsets.UTF_8)) {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					// Formato: numero<TAB>tipo<TAB>json
+					String[] fields = line.split("\t", 3);
+					if (fields.length < 3 || fields[1].isEmpty()) {
+						System.out.println("[SERVER] Record del log scritto solo in parte, recupero interrotto");
+						break replay;
+					}
+
+					try {
+						long recordSequence = Long.parseLong(fields[0]);
+						if (recordSequence <= sequence) {
+							validBytes += line.getBytes(StandardCharsets.UTF_8).length + 1;
+							continue; // Già contenuto nello snapshot
+						}
+
+						handler.handle(fields[1].charAt(0), fields[2]);
+						sequence = recordSequence;
+						replayed++;
+						validBytes += line.getBytes(StandardCharsets.UTF_8).length + 1;
+					} catch (RuntimeException e) {
+						System.out.println("[SERVER] Record del log non valido, recupero interrotto: " + e.getMessage());
+						break replay;
+					}
+				}
+			}
+			damaged = -1;
+		}
+
+		// Altrimenti al prossimo avvio il recupero si fermerebbe di nuovo sul record non valido, ignorando quelli scritti dopo:
+		// ne salvo una copia (file.N.damaged) per poterla ispezionare e lo tronco lì, tenendo i record già riapplicati,
+		// e metto da parte allo stesso modo i segmenti successivi
+		if (damaged >= 0) {
+			for (int index : segments) {
+				segment = Math.max(segment, index);
+				Path damagedCopy = Paths.get(segmentFile(index) + ".damaged");
+				if (index == damaged) {
+					Files.copy(segmentFile(index), damagedCopy, StandardCopyOption.REPLACE_EXISTING);
+					try (FileChannel truncated = FileChannel.open(segmentFile(index), StandardOpenOption.WRITE)) {
+						truncated.truncate(validBytes);
+						truncated.force(false);
+					}
+				} else if (index > damaged)
+					Files.move(segmentFile(index), damagedCopy, StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+
+		openSegment(segment + 1);
+		syncedSequence = sequence;
+		return replayed;
+	}
+
+	// Aggiunge un record al log. Se fsync è ALWAYS, va seguito da commit() prima di rispondere al client
+	public synchronized void append(char type, String json) throws IOException {
+		sequence++;
+		byte[] record = (sequence + "\t" + type + "\t" + json + "\n").getBytes(StandardCharsets.UTF_8);
+		ByteBuffer buffer = ByteBuffer.wrap(record);
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+	}
+
+	// Rende persistenti i record scritti, se richiesto ad ogni operazione.
+	// Da chiamare fuori dai lock, così più richieste concorrenti condividono lo stesso fsync
+	public void commit() throws IOException {
+		if (fsync == Fsync.ALWAYS)
+			sync();
+	}
+
+	// Forza su disco i record scritti finora. Ritorna solo quando tutti i record scritti prima della chiamata
+	// sono su disco, forzati da questo thread o da un altro che lo ha preceduto
+	public void sync() throws IOException {
+		if (fsync == Fsync.NEVER)
+			return;
+		long target;
+		synchronized (this) {
+			target = sequence;
+		}
+
+		synchronized (syncLock) {
+			if (syncedSequence >= target)
+				return;
+
+			// Il canale corrente contiene tutti i record fino a covered non ancora forzati da rotate
+			FileChannel current;
+			long covered;
+			synchronized (this) {
+				current = channel;
+				covered = sequence;
+			}
+			try {
+				current.force(false);
+			} catch (ClosedChannelException e) {
+				// Segmento chiuso da rotate, che lo ha già forzato su disco
+			}
+			syncedSequence = covered;
+		}
+	}
+
+	// Inizia un nuovo segmento in vista di uno snapshot. Ritorna il numero dell'ultimo record
+	// del segmento precedente, che lo snapshot dovrà contenere
+	public synchronized long rotate() throws IOException {
+		channel.force(false);
+		channel.close();
+		openSegment(segment + 1);
+		return sequence;
+	}
+
+	// Lo snapshot contenente tutti i record fino a lastSequence è stato scritto:
+	// lo registro ed elimino i segmenti precedenti a quello corrente
+	public void checkpoint(long lastSequence) throws IOException {
+		Path tmp = Paths.get(checkpointFile + ".tmp");
+		Files.writeString(tmp, Long.toString(lastSequence));
+		Files.move(tmp, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		int current;
+		synchronized (this) {
+			current = segment;
+		}
+		for (int index : segments()) {
+			if (index < current)
+				Files.deleteIfExists(segmentFile(index));
+		}
+	}
+
+	public synchronized void close() throws IOException {
+		if (channel == null)
+			return;
+		channel.force(false);
+		channel.close();
+	}
+
+	private void openSegment(int index) throws IOException {
+		segment = index;
+		channel = FileChannel.open(segmentFile(index), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+	}
+
+	private Path segmentFile(int index) {
+		return Paths.get(fileName + "." + index);
+	}
+
+	// Indici dei segmenti presenti su disco, in ordine crescente
+	private List<Integer> segments() throws IOException {
+		Path file = Paths.get(fileName).toAbsolutePath();
+		String prefix = file.getFileName() + ".";
+		List<Integer> indexes = new ArrayList<Integer>();
+
+		try (Stream<Path> files = Files.list(file.getParent())) {
+			files.map(f -> f.getFileName().toString())
+				.filter(name -> name.startsWith(prefix) && name.substring(prefix.length()).matches("\\d+"))
+				.forEach(name -> indexes.add(Integer.parseInt(name.substring(prefix.length()))));
+		}
+
+		Collections.sort(indexes);
+		return indexes;
+	}
+
+}